@@ -0,0 +1,34 @@
+package ink.markidea.note.constant;
+
+/**
+ * 笔记写入的持久化级别
+ */
+public enum WriteDurability {
+
+    /**
+     * 只保证原子替换 不主动刷盘
+     */
+    NONE,
+
+    /**
+     * 替换前把临时文件刷到磁盘
+     */
+    FSYNC_FILE,
+
+    /**
+     * 在 FSYNC_FILE 的基础上 替换后再刷新所在目录 保证重命名本身落盘
+     */
+    FSYNC_DIR;
+
+    /**
+     * 解析配置值 none / fsync-file / fsync-dir
+     */
+    public static WriteDurability of(String value) {
+        for (WriteDurability durability : values()) {
+            if (durability.name().replace('_', '-').equalsIgnoreCase(value.trim())) {
+                return durability;
+            }
+        }
+        throw new IllegalArgumentException("Unknown write durability: " + value);
+    }
+}
@@ -1,16 +1,24 @@
 package ink.markidea.note.context.config;
 
 import com.github.benmanes.caffeine.cache.*;
-import ink.markidea.note.entity.ArticleDo;
+import ink.markidea.note.context.note.DraftBuffer;
+import ink.markidea.note.context.note.OffHeapNoteStore;
+import ink.markidea.note.entity.dto.NoteContent;
 import ink.markidea.note.entity.dto.NotePreviewInfo;
 import ink.markidea.note.entity.dto.UserNoteKey;
+import ink.markidea.note.entity.vo.NoteDiffVo;
 import ink.markidea.note.entity.vo.UserVo;
 import ink.markidea.note.service.IArticleService;
 import ink.markidea.note.service.IFileService;
+import ink.markidea.note.util.FileUtil;
+import ink.markidea.note.util.MarkdownUtil;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import org.checkerframework.checker.index.qual.NonNegative;
 import org.checkerframework.checker.nullness.qual.NonNull;
+import org.eclipse.jgit.lib.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.EnvironmentAware;
 import org.springframework.context.annotation.Bean;
@@ -19,7 +27,10 @@ import org.springframework.core.env.Environment;
 
 import java.io.File;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Configuration
 public class CacheConfig implements EnvironmentAware {
@@ -31,6 +42,16 @@ public class CacheConfig implements EnvironmentAware {
 
     private static final long HOUR_DURATION_IN_NANO_SECONDS = 3600L * 1000L * 1000L;
 
+    /**
+     * 预览的字符数
+     */
+    private static final int PREVIEW_LENGTH = 60;
+
+    /**
+     * 生成预览时读取文件开头的字节数
+     */
+    private static final int PREVIEW_HEAD_BYTES = 4096;
+
     @Autowired
     private IFileService fileService;
 
@@ -38,17 +59,77 @@ public class CacheConfig implements EnvironmentAware {
     private IArticleService articleService;
 
     @Autowired
-    @Qualifier("userNoteCache")
-    private LoadingCache<UserNoteKey, String> userNoteCache;
+    private DraftBuffer draftBuffer;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
 
     @Value("${notesDir}")
     private String notesDir;
 
+    @Value("${userCache.maximumSize:500}")
+    private long userCacheMaximumSize;
+
+    @Value("${noteCache.maximumWeight:131072000}")
+    private long noteCacheMaximumWeight;
+
+    @Value("${noteCache.expireHours:12}")
+    private long noteCacheExpireHours;
+
+    @Value("${notePreviewCache.maximumWeight:10485760}")
+    private long notePreviewCacheMaximumWeight;
+
+    @Value("${notePreviewCache.expireHours:12}")
+    private long notePreviewCacheExpireHours;
+
+    /**
+     * 预览写入多久后再次读取时在后台刷新 刷新完成前返回旧值
+     */
+    @Value("${notePreviewCache.refreshMinutes:10}")
+    private long notePreviewCacheRefreshMinutes;
+
+    /**
+     * 加载预览的线程数
+     */
+    @Value("${notePreviewCache.threads:2}")
+    private int notePreviewCacheThreads;
+
+    @Value("${historyBlobCache.maximumWeight:33554432}")
+    private long historyBlobCacheMaximumWeight;
+
+    @Value("${historyDiffCache.maximumSize:512}")
+    private long historyDiffCacheMaximumSize;
+
+    /**
+     * 笔记内容是否保存在堆外内存
+     */
+    @Value("${noteCache.offHeap.enabled:false}")
+    private boolean offHeapEnabled;
+
+    /**
+     * 堆外内存上限 开启堆外存储时笔记缓存的容量为堆内上限(noteCache.maximumWeight)加上堆外上限
+     */
+    @Value("${noteCache.offHeap.maxBytes:268435456}")
+    private long offHeapMaxBytes;
+
+    /**
+     * 每次申请的堆外内存大小
+     */
+    @Value("${noteCache.offHeap.slabBytes:4194304}")
+    private int offHeapSlabBytes;
+
+    /**
+     * 堆外内存的分配单位
+     */
+    @Value("${noteCache.offHeap.blockSize:1024}")
+    private int offHeapBlockSize;
+
     /**创建一个 用户缓存（类似一个map）*/
     @Bean
     public Cache<String, UserVo> userCache(){
-        return Caffeine.newBuilder()
-                        .maximumSize(500)
+        Cache<String, UserVo> cache = Caffeine.newBuilder()
+                        .maximumSize(userCacheMaximumSize)
+                .recordStats()
                 .expireAfter(new Expiry<String, UserVo>() {
                     //重写三个缓存过期的方法 设置缓存过期时间
                     @Override
@@ -66,47 +147,126 @@ public class CacheConfig implements EnvironmentAware {
                         return currentTime + tokenExpireTimeInHour * HOUR_DURATION_IN_NANO_SECONDS;
                     }
                 }).build();
+        return monitor(cache, "userCache");
     }
 
     /**用户Note缓存
      *
-     * @return LoadingCache<UserNoteKey, String>
+     * @return LoadingCache<UserNoteKey, NoteContent>
      *      UserNoteKey 笔记数据的key对象
-     *      String 文章内容
+     *      NoteContent 文章内容 以UTF-8字节保存 较大的内容压缩保存 按实际占用的字节数称重
      */
     @Bean("userNoteCache")
-    public LoadingCache<UserNoteKey, String> userNoteCache(){
-        return Caffeine.newBuilder()
-                .maximumWeight(125 * 1024 * 1024)
-                .weigher(new Weigher<UserNoteKey, String>() {
+    public LoadingCache<UserNoteKey, NoteContent> userNoteCache(){
+        long maximumWeight = noteCacheMaximumWeight;
+        if (offHeapEnabled) {
+            OffHeapNoteStore offHeapStore = new OffHeapNoteStore(offHeapMaxBytes, offHeapSlabBytes, offHeapBlockSize);
+            NoteContent.setOffHeapStore(offHeapStore);
+            //堆外存满时内容才保存在堆内, 此时堆外占满了 offHeapMaxBytes, 堆内最多占用 noteCacheMaximumWeight
+            maximumWeight += offHeapStore.getMaxBytes();
+            Gauge.builder("cache.offheap.used", offHeapStore, OffHeapNoteStore::getUsedBytes)
+                    .tag("cache", "userNoteCache").baseUnit("bytes").register(meterRegistry);
+            Gauge.builder("cache.offheap.allocated", offHeapStore, OffHeapNoteStore::getAllocatedBytes)
+                    .tag("cache", "userNoteCache").baseUnit("bytes").register(meterRegistry);
+        }
+        LoadingCache<UserNoteKey, NoteContent> cache = Caffeine.newBuilder()
+                .maximumWeight(maximumWeight)
+                .recordStats()
+                .weigher(new Weigher<UserNoteKey, NoteContent>() {
                     @Override
-                    public @NonNegative int weigh(@NonNull UserNoteKey key, @NonNull String value) {
-                        return value.length();
+                    public @NonNegative int weigh(@NonNull UserNoteKey key, @NonNull NoteContent value) {
+                        return value.getWeight();
                     }
                 })
-                .expireAfterWrite(12, TimeUnit.HOURS)
+                //移除(过期, 淘汰, 失效, 替换)时释放堆外内存
+                .removalListener((UserNoteKey key, NoteContent value, RemovalCause cause) -> {
+                    if (value != null) {
+                        value.release();
+                    }
+                })
+                .expireAfterWrite(noteCacheExpireHours, TimeUnit.HOURS)
                 //将用户笔记内容通过(key)载入缓存
                 .build(key -> loadNote(key.getUsername(), key.getNotebookName(), key.getNoteTitle()));
+        return monitor(cache, "userNoteCache");
     }
 
 
     /**
      * 用户笔记预览缓存
      * 用于公开笔记内容的展示
+     * 预览在独立的线程池中异步加载, 过了刷新时间的预览先返回旧值再在后台重新加载
      * @return
      */
     @Bean("userNotePreviewCache")
-    public LoadingCache<UserNoteKey, NotePreviewInfo> userNotePreviewCache(){
-        return Caffeine.newBuilder()
-                .maximumWeight(10 * 1024 * 1024)
+    public AsyncLoadingCache<UserNoteKey, NotePreviewInfo> userNotePreviewCache(){
+        AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(notePreviewCacheThreads, runnable -> {
+            Thread thread = new Thread(runnable, "note-preview-loader-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AsyncLoadingCache<UserNoteKey, NotePreviewInfo> cache = Caffeine.newBuilder()
+                .maximumWeight(notePreviewCacheMaximumWeight)
+                .recordStats()
+                .executor(executor)
                 .weigher(new Weigher<UserNoteKey, NotePreviewInfo>() {
                     @Override
                     public @NonNegative int weigh(@NonNull UserNoteKey key, @NonNull NotePreviewInfo value) {
                         return value.getPreviewContent() == null ? 0:value.getPreviewContent().length();
                     }
                 })
-                .expireAfterWrite(12, TimeUnit.HOURS)
-                .build(this::loadPreview);
+                .expireAfterWrite(notePreviewCacheExpireHours, TimeUnit.HOURS)
+                .refreshAfterWrite(notePreviewCacheRefreshMinutes, TimeUnit.MINUTES)
+                .buildAsync(this::loadPreview);
+        monitor(cache.synchronous(), "userNotePreviewCache");
+        return cache;
+    }
+
+    /**
+     * 笔记历史版本内容缓存
+     * key为blob id, blob内容不会改变, 因此不需要失效
+     */
+    @Bean("historyBlobCache")
+    public Cache<ObjectId, byte[]> historyBlobCache(){
+        Cache<ObjectId, byte[]> cache = Caffeine.newBuilder()
+                .maximumWeight(historyBlobCacheMaximumWeight)
+                .recordStats()
+                .weigher(new Weigher<ObjectId, byte[]>() {
+                    @Override
+                    public @NonNegative int weigh(@NonNull ObjectId key, @NonNull byte[] value) {
+                        return value.length;
+                    }
+                })
+                .build();
+        return monitor(cache, "historyBlobCache");
+    }
+
+    /**
+     * 笔记版本差异缓存
+     * key为两个版本的blob id, 同样不需要失效
+     */
+    @Bean("historyDiffCache")
+    public Cache<String, NoteDiffVo> historyDiffCache(){
+        Cache<String, NoteDiffVo> cache = Caffeine.newBuilder()
+                .maximumSize(historyDiffCacheMaximumSize)
+                .recordStats()
+                .build();
+        return monitor(cache, "historyDiffCache");
+    }
+
+    /**
+     * 注册缓存指标: 命中, 未命中, 加载耗时, 淘汰次数, 条目数及容量占用
+     * 通过 /actuator/metrics/cache.gets?tag=cache:userNoteCache 等查看
+     */
+    private <C extends Cache<?, ?>> C monitor(C cache, String cacheName) {
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, cacheName);
+        cache.policy().eviction().ifPresent(eviction -> {
+            if (eviction.isWeighted()) {
+                Gauge.builder("cache.weighted.size", eviction, e -> e.weightedSize().orElse(0L))
+                        .tag("cache", cacheName).register(meterRegistry);
+            }
+        });
+        return cache;
     }
 
     /**
@@ -116,7 +276,12 @@ public class CacheConfig implements EnvironmentAware {
      * @param noteTitle
      * @return content 笔记内容
      */
-    private String loadNote(String username, String notebookName, String noteTitle) {
+    private NoteContent loadNote(String username, String notebookName, String noteTitle) {
+        //尚未写入磁盘的草稿比文件新
+        String draft = draftBuffer.get(UserNoteKey.of(username, notebookName, noteTitle));
+        if (draft != null) {
+            return NoteContent.of(draft);
+        }
         //获取用户笔记目录及文件名
         String relativeFileName = getRelativeFileName(notebookName,noteTitle);
         //获取用户笔记文件
@@ -125,29 +290,26 @@ public class CacheConfig implements EnvironmentAware {
             return  null;
         }
         String content = fileService.getContentFromFile(noteFile);
-        return content;
+        return content == null ? null : NoteContent.of(content);
     }
 
     /**
      * 载入预览
+     * 只读取文件开头的一部分 去掉Markdown标记后截取, 不经过也不填充笔记内容缓存
      * @param key
      * @return
      */
     private NotePreviewInfo loadPreview(UserNoteKey key){
-        String content = userNoteCache.get(key);
-        if (content == null) {
+        File noteFile = new File(getOrCreateUserNotebookDir(key.getUsername()),
+                getRelativeFileName(key.getNotebookName(), key.getNoteTitle()));
+        String head = FileUtil.readFileHead(noteFile, PREVIEW_HEAD_BYTES);
+        if (head == null) {
             return  null;
         }
-        //从文章实体中获取文章信息
-        ArticleDo articleDo = articleService.findByNotebookAndNoteTitle(key.getNotebookName(), key.getNoteTitle());
-        //previewInfo读取content中60个字符内的内容
-        NotePreviewInfo previewInfo =
-                new NotePreviewInfo().setPreviewContent(content.substring(0, Math.min(60, content.length())));
-        //在查询到文章实体的情况下 将文章id设置进预览信息
-        if (articleDo != null) {
-            previewInfo.setArticleId(articleDo.getId());
-        }
-        return previewInfo;
+        //previewInfo读取正文中60个字符内的内容 并设置文章id
+        //在加载线程中执行 不能依赖请求线程的用户名
+        return new NotePreviewInfo().setPreviewContent(MarkdownUtil.toPlainText(head, PREVIEW_LENGTH))
+                .setArticleId(articleService.findArticleId(key.getUsername(), key.getNotebookName(), key.getNoteTitle()));
     }
 
     /**
@@ -182,5 +344,6 @@ public class CacheConfig implements EnvironmentAware {
     @Override
     public void setEnvironment(Environment environment) {
         tokenExpireTimeInHour = Objects.requireNonNull(environment.getProperty("tokenExpireTimeInHour", Integer.class));
+        NoteContent.setCompressThreshold(environment.getProperty("noteCache.compressThreshold", Integer.class, 1024));
     }
 }
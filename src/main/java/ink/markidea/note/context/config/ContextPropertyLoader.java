@@ -61,6 +61,11 @@ public class ContextPropertyLoader implements EnvironmentPostProcessor, Ordered
         checkAndCreateDirIfNecessary(notesDir);
         map.put("notesDir", notesDir.getAbsolutePath());
 
+        //笔记全文索引
+        File indexDir = new File(basePath, "index");
+        checkAndCreateDirIfNecessary(indexDir);
+        map.put("indexDir", indexDir.getAbsolutePath());
+
         //本地资源存放路径
         File staticDir = new File(basePath,"static");
         checkAndCreateDirIfNecessary(staticDir);
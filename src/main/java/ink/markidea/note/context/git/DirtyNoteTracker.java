@@ -0,0 +1,223 @@
+package ink.markidea.note.context.git;
+
+import ink.markidea.note.context.note.DraftBuffer;
+import ink.markidea.note.util.GitUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * 临时保存(已修改但未提交)的笔记集合
+ *
+ * 每个用户在内存中维护一份已修改未提交的文件集合, 由临时保存, 保存, 删除等操作直接更新,
+ * 展示笔记列表时只读内存不再执行git status.
+ * 集合在首次访问时由一次全仓库的git status初始化, 之后由后台任务定期与git status对账.
+ * 对账只针对上次对账以来访问过的用户, 不会让空闲的仓库一直保持打开; 仓库关闭时一并丢弃集合.
+ */
+@Component
+@Slf4j
+public class DirtyNoteTracker {
+
+    @Autowired
+    private GitRepositoryPool gitRepositoryPool;
+
+    @Autowired
+    private GroupCommitter groupCommitter;
+
+    @Autowired
+    private DraftBuffer draftBuffer;
+
+    private final ConcurrentMap<String, UserDirtySet> dirtySetMap = new ConcurrentHashMap<>();
+
+    /**
+     * 对账发现集合与git status不一致时的回调 参数为用户名
+     */
+    private final List<Consumer<String>> changeListeners = new CopyOnWriteArrayList<>();
+
+    @PostConstruct
+    private void init() {
+        //仓库关闭时丢弃集合 下次访问时重新执行git status
+        gitRepositoryPool.addEvictListener(dirtySetMap::remove);
+    }
+
+    /**
+     * 获取用户已修改但未提交的文件 相对用户仓库的路径
+     */
+    public Set<String> getDirtyFiles(String username) {
+        return Collections.unmodifiableSet(getOrLoad(username).paths);
+    }
+
+    /**
+     * 文件已写入工作区但未提交
+     */
+    public void markDirty(String username, String fileName) {
+        UserDirtySet dirtySet = dirtySetMap.get(username);
+        if (dirtySet == null) {
+            return;
+        }
+        dirtySet.update(paths -> paths.add(fileName));
+    }
+
+    /**
+     * 文件已提交, 已删除或已撤销修改
+     */
+    public void markClean(String username, String fileName) {
+        UserDirtySet dirtySet = dirtySetMap.get(username);
+        if (dirtySet == null) {
+            return;
+        }
+        dirtySet.update(paths -> paths.remove(fileName));
+    }
+
+    /**
+     * 笔记本下的文件全部已提交或已删除
+     */
+    public void markNotebookClean(String username, String notebookName) {
+        UserDirtySet dirtySet = dirtySetMap.get(username);
+        if (dirtySet == null) {
+            return;
+        }
+        String prefix = notebookName + "/";
+        dirtySet.update(paths -> paths.removeIf(path -> path.startsWith(prefix)));
+    }
+
+    public void addChangeListener(Consumer<String> listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * 丢弃用户的集合 下次访问时重新执行git status
+     * 用于拉取远程仓库等无法逐个跟踪文件的操作
+     */
+    public void invalidate(String username) {
+        dirtySetMap.remove(username);
+    }
+
+    /**
+     * 后台与git status对账
+     * 上次对账以来没有访问过的用户跳过, 让空闲的仓库可以被关闭
+     * 对账期间集合有更新时放弃本次结果, 留待下次对账
+     */
+    @Scheduled(fixedDelayString = "${dirtyNote.reconcileMs:300000}", initialDelayString = "${dirtyNote.reconcileMs:300000}")
+    public void reconcile() {
+        for (Map.Entry<String, UserDirtySet> entry : dirtySetMap.entrySet()) {
+            String username = entry.getKey();
+            UserDirtySet dirtySet = entry.getValue();
+            long version;
+            synchronized (dirtySet) {
+                if (dirtySet.pendingOps != null || !dirtySet.accessed) {
+                    continue;
+                }
+                dirtySet.accessed = false;
+                version = dirtySet.version;
+            }
+            Set<String> statusSet;
+            try {
+                statusSet = loadStatus(username);
+            } catch (RuntimeException e) {
+                log.error("reconcile dirty notes of user: {} failed", username, e);
+                continue;
+            }
+            synchronized (dirtySet) {
+                if (dirtySet.version != version) {
+                    continue;
+                }
+                if (!dirtySet.paths.equals(statusSet)) {
+                    log.info("dirty notes of user: {} out of sync, tracked: {}, status: {}", username, dirtySet.paths, statusSet);
+                    dirtySet.paths.retainAll(statusSet);
+                    dirtySet.paths.addAll(statusSet);
+                } else {
+                    continue;
+                }
+            }
+            changeListeners.forEach(listener -> listener.accept(username));
+        }
+    }
+
+    /**
+     * 获取用户的集合 首次访问时先放入空集合再执行git status,
+     * 加载期间的更新记录下来, 加载完成后按顺序应用, 不会被git status的结果覆盖
+     */
+    private UserDirtySet getOrLoad(String username) {
+        UserDirtySet dirtySet = dirtySetMap.get(username);
+        if (dirtySet == null) {
+            UserDirtySet created = new UserDirtySet();
+            dirtySet = dirtySetMap.putIfAbsent(username, created);
+            if (dirtySet == null) {
+                load(username, created);
+                return created;
+            }
+        }
+        dirtySet.ready.join();
+        dirtySet.accessed = true;
+        return dirtySet;
+    }
+
+    private void load(String username, UserDirtySet dirtySet) {
+        Set<String> statusSet;
+        try {
+            statusSet = loadStatus(username);
+        } catch (RuntimeException e) {
+            dirtySetMap.remove(username, dirtySet);
+            dirtySet.ready.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (dirtySet) {
+            dirtySet.paths.addAll(statusSet);
+            dirtySet.pendingOps.forEach(op -> op.accept(dirtySet.paths));
+            dirtySet.pendingOps = null;
+        }
+        dirtySet.ready.complete(null);
+    }
+
+    /**
+     * 先提交合并队列 否则已保存但尚未合并提交的文件会被当作临时保存
+     * 草稿缓冲中的笔记尚未写入磁盘, git status看不到, 同样算作临时保存
+     */
+    private Set<String> loadStatus(String username) {
+        groupCommitter.flush(username);
+        Set<String> statusSet = new HashSet<>(gitRepositoryPool.execute(username, GitUtil::getModifiedButUnCommitted));
+        statusSet.addAll(draftBuffer.getPendingFiles(username));
+        return statusSet;
+    }
+
+    private static class UserDirtySet {
+
+        private final Set<String> paths = ConcurrentHashMap.newKeySet();
+
+        /** 每次更新加一 用于判断对账期间是否有更新 */
+        private long version;
+
+        /** 首次git status期间的更新 为null时已加载完成 */
+        private List<Consumer<Set<String>>> pendingOps = new ArrayList<>();
+
+        /** 首次git status完成 */
+        private final CompletableFuture<Void> ready = new CompletableFuture<>();
+
+        /** 上次对账以来是否访问过 */
+        private volatile boolean accessed = true;
+
+        private synchronized void update(Consumer<Set<String>> op) {
+            if (pendingOps != null) {
+                pendingOps.add(op);
+            }
+            op.accept(paths);
+            version++;
+            accessed = true;
+        }
+    }
+}
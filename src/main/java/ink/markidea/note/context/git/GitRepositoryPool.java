@@ -0,0 +1,203 @@
+package ink.markidea.note.context.git;
+
+import ink.markidea.note.util.FileUtil;
+import ink.markidea.note.util.GitUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jgit.api.Git;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 用户git仓库池
+ *
+ * 每个用户的仓库只打开一次并常驻内存, 避免每次请求都重新读取config, refs和pack列表.
+ * 借出时引用计数加一, 归还时减一, 只有空闲超时且没有被借出的仓库才会被关闭.
+ */
+@Component
+@Slf4j
+public class GitRepositoryPool {
+
+    @Value("${notesDir}")
+    private String notesDir;
+
+    /**
+     * 仓库空闲多久后关闭 单位秒
+     */
+    @Value("${gitRepositoryIdleSeconds:600}")
+    private long idleSeconds;
+
+    private final ConcurrentMap<String, PooledRepository> pool = new ConcurrentHashMap<>();
+
+    /**
+     * 早于该时间的临时文件才视为遗留 单位毫秒
+     */
+    private static final long TEMP_FILE_MIN_AGE_MILLIS = 60 * 1000;
+
+    /**
+     * 仓库被关闭时的回调 参数为用户名
+     */
+    private final List<Consumer<String>> evictListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * 借出用户仓库 使用完毕后必须close归还
+     * 仓库不存在时会初始化
+     */
+    public GitHandle borrow(String username) {
+        while (true) {
+            PooledRepository repository = pool.computeIfAbsent(username, this::open);
+            if (repository.retain()) {
+                return new GitHandle(repository);
+            }
+            //仓库恰好被回收线程关闭 移除后重新打开
+            pool.remove(username, repository);
+        }
+    }
+
+    public <T> T execute(String username, Function<Git, T> action) {
+        try (GitHandle handle = borrow(username)) {
+            return action.apply(handle.git());
+        }
+    }
+
+    public void run(String username, Consumer<Git> action) {
+        try (GitHandle handle = borrow(username)) {
+            action.accept(handle.git());
+        }
+    }
+
+    public void addEvictListener(Consumer<String> listener) {
+        evictListeners.add(listener);
+    }
+
+    /**
+     * 关闭空闲的仓库
+     */
+    @Scheduled(fixedDelay = 60 * 1000, initialDelay = 60 * 1000)
+    public void evictIdleRepositories() {
+        long idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+        for (Map.Entry<String, PooledRepository> entry : pool.entrySet()) {
+            PooledRepository repository = entry.getValue();
+            if (repository.closeIfIdle(idleNanos)) {
+                pool.remove(entry.getKey(), repository);
+                onEvict(entry.getKey());
+            }
+        }
+    }
+
+    @PreDestroy
+    public void closeAll() {
+        for (Map.Entry<String, PooledRepository> entry : pool.entrySet()) {
+            entry.getValue().forceClose();
+            onEvict(entry.getKey());
+        }
+        pool.clear();
+    }
+
+    private void onEvict(String username) {
+        log.debug("close git repository of user: {}", username);
+        for (Consumer<String> listener : evictListeners) {
+            try {
+                listener.accept(username);
+            } catch (RuntimeException e) {
+                log.error("git repository evict listener error, user: {}", username, e);
+            }
+        }
+    }
+
+    /**
+     * 打开仓库 同时忽略并清理原子写入遗留的临时文件
+     */
+    private PooledRepository open(String username) {
+        File repositoryDir = new File(notesDir, username);
+        Git git = GitUtil.getOrInitGit(repositoryDir);
+        if (git == null) {
+            throw new IllegalStateException("Can't open git repository of user: " + username);
+        }
+        GitUtil.addExcludePattern(git, FileUtil.TEMP_FILE_GLOB);
+        FileUtil.deleteLeftoverTempFiles(repositoryDir, TEMP_FILE_MIN_AGE_MILLIS);
+        return new PooledRepository(git);
+    }
+
+    private static class PooledRepository {
+
+        private final Git git;
+
+        private int refCount;
+
+        private long lastAccessNanos = System.nanoTime();
+
+        private boolean closed;
+
+        private PooledRepository(Git git) {
+            this.git = git;
+        }
+
+        private synchronized boolean retain() {
+            if (closed) {
+                return false;
+            }
+            refCount++;
+            lastAccessNanos = System.nanoTime();
+            return true;
+        }
+
+        private synchronized void release() {
+            refCount--;
+            lastAccessNanos = System.nanoTime();
+        }
+
+        private synchronized boolean closeIfIdle(long idleNanos) {
+            if (closed || refCount > 0 || System.nanoTime() - lastAccessNanos < idleNanos) {
+                return false;
+            }
+            closed = true;
+            git.close();
+            return true;
+        }
+
+        private synchronized void forceClose() {
+            if (!closed) {
+                closed = true;
+                git.close();
+            }
+        }
+    }
+
+    /**
+     * 借出的仓库 close时归还
+     */
+    public static class GitHandle implements AutoCloseable {
+
+        private final PooledRepository repository;
+
+        private boolean released;
+
+        private GitHandle(PooledRepository repository) {
+            this.repository = repository;
+        }
+
+        public Git git() {
+            return repository.git;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                repository.release();
+            }
+        }
+    }
+}
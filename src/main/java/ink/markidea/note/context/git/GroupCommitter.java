@@ -0,0 +1,163 @@
+package ink.markidea.note.context.git;
+
+import ink.markidea.note.util.GitUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 合并提交
+ *
+ * 开启后保存笔记只写文件并把路径放入用户的提交队列,
+ * 队列在第一个路径入队后 intervalMs 毫秒, 或攒够 maxPaths 个路径时合并为一次提交.
+ * 同一用户的提交串行执行, 其他git操作执行前会先提交队列中的路径. 提交失败的路径放回队列稍后重试.
+ */
+@Component
+@Slf4j
+public class GroupCommitter {
+
+    @Value("${groupCommit.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * 最长等待时间 单位毫秒
+     */
+    @Value("${groupCommit.intervalMs:2000}")
+    private long intervalMs;
+
+    /**
+     * 攒够多少个文件立即提交
+     */
+    @Value("${groupCommit.maxPaths:50}")
+    private int maxPaths;
+
+    @Value("${groupCommit.threads:2}")
+    private int threads;
+
+    @Autowired
+    private GitRepositoryPool gitRepositoryPool;
+
+    private final ConcurrentMap<String, UserCommitQueue> queueMap = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        AtomicInteger threadIndex = new AtomicInteger();
+        executor = Executors.newScheduledThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "group-commit-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 文件已写入工作区 等待合并提交
+     * @param fileName 相对用户仓库的路径
+     */
+    public void enqueue(String username, String fileName) {
+        UserCommitQueue queue = queueMap.computeIfAbsent(username, k -> new UserCommitQueue());
+        boolean flushNow;
+        boolean scheduleFlush;
+        synchronized (queue) {
+            queue.paths.add(fileName);
+            flushNow = queue.paths.size() >= maxPaths;
+            scheduleFlush = !queue.scheduled;
+            queue.scheduled = true;
+        }
+        if (flushNow) {
+            executor.execute(() -> flush(username));
+        } else if (scheduleFlush) {
+            executor.schedule(() -> flush(username), intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 立即提交用户队列中的所有文件
+     */
+    public void flush(String username) {
+        UserCommitQueue queue = queueMap.get(username);
+        if (queue == null) {
+            return;
+        }
+        synchronized (queue.flushLock) {
+            List<String> paths;
+            synchronized (queue) {
+                queue.scheduled = false;
+                if (queue.paths.isEmpty()) {
+                    return;
+                }
+                paths = new ArrayList<>(queue.paths);
+                queue.paths.clear();
+            }
+            boolean success = false;
+            try {
+                success = gitRepositoryPool.execute(username, git -> GitUtil.addAndCommit(git, paths));
+                if (!success) {
+                    log.error("group commit of user: {} failed, files: {}", username, paths);
+                }
+            } catch (RuntimeException e) {
+                log.error("group commit of user: {} failed, files: {}", username, paths, e);
+            }
+            if (!success) {
+                requeue(username, queue, paths);
+            }
+        }
+    }
+
+    /**
+     * 提交失败的文件放回队列 intervalMs 毫秒后重试
+     * 保存时已标记为已提交, 不放回会导致这些修改一直不被提交
+     */
+    private void requeue(String username, UserCommitQueue queue, List<String> paths) {
+        boolean scheduleFlush;
+        synchronized (queue) {
+            queue.paths.addAll(paths);
+            scheduleFlush = !queue.scheduled;
+            queue.scheduled = true;
+        }
+        if (scheduleFlush && !executor.isShutdown()) {
+            executor.schedule(() -> flush(username), intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void flushAll() {
+        queueMap.keySet().forEach(this::flush);
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private static class UserCommitQueue {
+
+        /** 保证同一用户的提交串行 */
+        private final Object flushLock = new Object();
+
+        private final Set<String> paths = new LinkedHashSet<>();
+
+        /** 是否已安排延时提交 */
+        private boolean scheduled;
+    }
+}
@@ -0,0 +1,294 @@
+package ink.markidea.note.context.git;
+
+import ink.markidea.note.util.GitUtil;
+import ink.markidea.note.util.GitUtil.CommitMessage;
+import ink.markidea.note.util.GitUtil.NoteCommit;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * 单个用户的笔记历史索引: 文件路径 -> 涉及该文件的提交
+ *
+ * 磁盘上是一个追加写的日志文件, 每个提交一条记录, 记录提交信息和本次提交改动的文件,
+ * 按从旧到新的顺序追加, 最后一条记录的提交即为已索引到的位置.
+ * 每次查询前从HEAD往回遍历到已索引的提交, 只为新提交做树比较并追加记录,
+ * 索引文件缺失或历史被改写时从头重建.
+ */
+@Slf4j
+public class UserNoteHistory {
+
+    private static final int MAGIC = 0x4D484953;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_LENGTH = 8;
+
+    private final File historyFile;
+
+    /** 文件路径 -> 涉及该文件的提交 从旧到新 */
+    private final Map<String, List<NoteCommit>> pathCommits = new HashMap<>();
+
+    /** 已索引到的提交 */
+    private String indexedHead;
+
+    private boolean loaded;
+
+    public UserNoteHistory(File historyFile) {
+        this.historyFile = historyFile;
+    }
+
+    /**
+     * 获取涉及该文件的提交 从新到旧
+     */
+    public synchronized List<NoteCommit> getCommits(Git git, String fileName) {
+        if (!loaded) {
+            load();
+            loaded = true;
+        }
+        catchUp(git.getRepository());
+        List<NoteCommit> commits = pathCommits.get(fileName);
+        if (commits == null) {
+            return Collections.emptyList();
+        }
+        List<NoteCommit> res = new ArrayList<>(commits);
+        Collections.reverse(res);
+        return res;
+    }
+
+    private void load() {
+        if (!historyFile.exists()) {
+            return;
+        }
+        try {
+            long validLength = replay();
+            if (validLength < 0) {
+                reset();
+                return;
+            }
+            if (validLength < historyFile.length()) {
+                log.warn("history file: {} is corrupted at {}, truncate it", historyFile.getAbsolutePath(), validLength);
+                try (RandomAccessFile file = new RandomAccessFile(historyFile, "rw")) {
+                    file.setLength(validLength);
+                }
+            }
+        } catch (IOException e) {
+            log.error("load history file: {} failed", historyFile.getAbsolutePath(), e);
+            reset();
+        }
+    }
+
+    /**
+     * 为HEAD和已索引提交之间的新提交追加记录
+     */
+    private void catchUp(Repository repository) {
+        try {
+            ObjectId head = repository.resolve(Constants.HEAD);
+            if (head == null || head.name().equals(indexedHead)) {
+                return;
+            }
+            if (indexedHead != null && !isAncestor(repository, indexedHead, head)) {
+                log.info("history of {} was rewritten, rebuild history index", historyFile.getName());
+                reset();
+            }
+            long start = System.currentTimeMillis();
+            int commitCount = 0;
+            try (RevWalk walk = new RevWalk(repository);
+                 DataOutputStream out = openForAppend()) {
+                walk.sort(RevSort.TOPO, true);
+                walk.sort(RevSort.REVERSE, true);
+                walk.markStart(walk.parseCommit(head));
+                if (indexedHead != null) {
+                    walk.markUninteresting(walk.parseCommit(ObjectId.fromString(indexedHead)));
+                }
+                for (RevCommit revCommit : walk) {
+                    NoteCommit noteCommit = GitUtil.toNoteCommit(revCommit);
+                    List<String> changedPaths = getChangedPaths(repository, walk, revCommit);
+                    apply(noteCommit, changedPaths);
+                    writeRecord(out, encode(noteCommit, changedPaths));
+                    commitCount++;
+                }
+            }
+            if (commitCount > 1) {
+                log.info("index {} commits into {}, cost {} ms", commitCount, historyFile.getName(), System.currentTimeMillis() - start);
+            }
+        } catch (IOException e) {
+            log.error("update history file: {} failed", historyFile.getAbsolutePath(), e);
+            throw new RuntimeException("Update note history failed");
+        }
+    }
+
+    private static boolean isAncestor(Repository repository, String ref, ObjectId head) throws IOException {
+        try (RevWalk walk = new RevWalk(repository)) {
+            return walk.isMergedInto(walk.parseCommit(ObjectId.fromString(ref)), walk.parseCommit(head));
+        } catch (MissingObjectException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 与第一个父提交比较 获取本次提交改动的文件
+     */
+    private static List<String> getChangedPaths(Repository repository, RevWalk walk, RevCommit revCommit) throws IOException {
+        List<String> paths = new ArrayList<>();
+        try (TreeWalk treeWalk = new TreeWalk(repository)) {
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(TreeFilter.ANY_DIFF);
+            if (revCommit.getParentCount() > 0) {
+                treeWalk.addTree(walk.parseCommit(revCommit.getParent(0)).getTree());
+            } else {
+                treeWalk.addTree(new EmptyTreeIterator());
+            }
+            treeWalk.addTree(revCommit.getTree());
+            while (treeWalk.next()) {
+                paths.add(treeWalk.getPathString());
+            }
+        }
+        return paths;
+    }
+
+    private void apply(NoteCommit noteCommit, List<String> changedPaths) {
+        for (String path : changedPaths) {
+            pathCommits.computeIfAbsent(path, k -> new ArrayList<>(4)).add(noteCommit);
+        }
+        indexedHead = noteCommit.getRef();
+    }
+
+    private void reset() {
+        pathCommits.clear();
+        indexedHead = null;
+        if (historyFile.exists() && !historyFile.delete()) {
+            log.error("delete history file: {} failed", historyFile.getAbsolutePath());
+        }
+    }
+
+    private DataOutputStream openForAppend() throws IOException {
+        boolean newFile = !historyFile.exists() || historyFile.length() < HEADER_LENGTH;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(historyFile, !newFile)));
+        if (newFile) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+        return out;
+    }
+
+    /**
+     * @return 有效数据的长度, 文件版本不符时返回-1
+     */
+    private long replay() throws IOException {
+        long fileLength = historyFile.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(historyFile)))) {
+            if (fileLength < HEADER_LENGTH || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.info("history file: {} is outdated, rebuild it", historyFile.getAbsolutePath());
+                return -1;
+            }
+            long validLength = HEADER_LENGTH;
+            while (validLength < fileLength) {
+                int recordLength = in.readInt();
+                if (recordLength <= 0 || validLength + recordLength + 8 > fileLength) {
+                    break;
+                }
+                byte[] record = new byte[recordLength];
+                in.readFully(record);
+                if (in.readInt() != crc32(record)) {
+                    break;
+                }
+                decodeAndApply(record);
+                validLength += recordLength + 8;
+            }
+            return validLength;
+        }
+    }
+
+    /**
+     * 记录格式: 提交id, 提交时间, 是否有提交信息, [变更类型, 文件名, 合并提交的文件, 回滚的提交], 改动的文件
+     */
+    private static byte[] encode(NoteCommit noteCommit, List<String> changedPaths) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(noteCommit.getRef());
+        out.writeLong(noteCommit.getTime());
+        CommitMessage message = noteCommit.getMessage();
+        out.writeBoolean(message != null);
+        if (message != null) {
+            out.writeInt(message.getChangeType() == null ? -1 : message.getChangeType());
+            writeNullableString(out, message.getFileName());
+            List<String> fileNames = message.getFileNames();
+            out.writeInt(fileNames == null ? -1 : fileNames.size());
+            if (fileNames != null) {
+                for (String fileName : fileNames) {
+                    out.writeUTF(fileName);
+                }
+            }
+            writeNullableString(out, message.getPrevRef());
+        }
+        out.writeInt(changedPaths.size());
+        for (String path : changedPaths) {
+            out.writeUTF(path);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void decodeAndApply(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        NoteCommit noteCommit = new NoteCommit().setRef(in.readUTF()).setTime(in.readLong());
+        if (in.readBoolean()) {
+            int changeType = in.readInt();
+            CommitMessage message = new CommitMessage()
+                    .setChangeType(changeType < 0 ? null : changeType)
+                    .setFileName(readNullableString(in));
+            int fileNameCount = in.readInt();
+            if (fileNameCount >= 0) {
+                List<String> fileNames = new ArrayList<>(fileNameCount);
+                for (int i = 0; i < fileNameCount; i++) {
+                    fileNames.add(in.readUTF());
+                }
+                message.setFileNames(fileNames);
+            }
+            noteCommit.setMessage(message.setPrevRef(readNullableString(in)));
+        }
+        int pathCount = in.readInt();
+        List<String> changedPaths = new ArrayList<>(pathCount);
+        for (int i = 0; i < pathCount; i++) {
+            changedPaths.add(in.readUTF());
+        }
+        apply(noteCommit, changedPaths);
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        out.writeInt(record.length);
+        out.write(record);
+        out.writeInt(crc32(record));
+    }
+
+    private static int crc32(byte[] bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, bytes.length);
+        return (int) crc32.getValue();
+    }
+}
@@ -0,0 +1,158 @@
+package ink.markidea.note.context.index;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 笔记分词器
+ *
+ * 拉丁字母和数字按单词切分并转为小写, 每个单词占一个位置, 查询时单词按前缀匹配;
+ * 中日韩文字(按码点处理, 含扩展区的代理对)每个字占一个位置, 建索引时在每个位置上同时产生一元, 二元和三元组,
+ * 查询时用尽量长的n元组覆盖查询串, 再由位置校验连续性, 因此任意子串查询都只需查倒排表.
+ */
+public class NoteTokenizer {
+
+    /** 索引的最大n元组长度 */
+    static final int MAX_GRAM = 3;
+
+    private NoteTokenizer() {
+    }
+
+    /**
+     * 建索引用的分词
+     */
+    public static List<Token> tokenize(String text) {
+        return tokenize(text, false);
+    }
+
+    /**
+     * 查询用的分词
+     * 中文连续片段只取能覆盖整个片段的最少n元组, 单词标记为前缀匹配
+     */
+    public static List<Token> tokenizeQuery(String text) {
+        return tokenize(text, true);
+    }
+
+    private static List<Token> tokenize(String text, boolean query) {
+        if (text == null || text.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        List<Token> tokens = new ArrayList<>();
+        int position = 0;
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int c = text.codePointAt(i);
+            if (isCjk(c)) {
+                //片段中每个字的起始下标 最后一个为片段结尾
+                int[] offsets = cjkRunOffsets(text, i);
+                if (query) {
+                    addQueryGrams(tokens, text, offsets, position);
+                } else {
+                    addIndexGrams(tokens, text, offsets, position);
+                }
+                position += offsets.length - 1;
+                i = offsets[offsets.length - 1];
+            } else if (Character.isLetterOrDigit(c)) {
+                int wordEnd = i + Character.charCount(c);
+                while (wordEnd < length) {
+                    int next = text.codePointAt(wordEnd);
+                    if (!Character.isLetterOrDigit(next) || isCjk(next)) {
+                        break;
+                    }
+                    wordEnd += Character.charCount(next);
+                }
+                tokens.add(new Token(text.substring(i, wordEnd).toLowerCase(Locale.ROOT), position++, query));
+                i = wordEnd;
+            } else {
+                i += Character.charCount(c);
+            }
+        }
+        return tokens;
+    }
+
+    private static int[] cjkRunOffsets(String text, int start) {
+        int length = text.length();
+        int count = 0;
+        int end = start;
+        while (end < length) {
+            int c = text.codePointAt(end);
+            if (!isCjk(c)) {
+                break;
+            }
+            end += Character.charCount(c);
+            count++;
+        }
+        int[] offsets = new int[count + 1];
+        int offset = start;
+        for (int k = 0; k < count; k++) {
+            offsets[k] = offset;
+            offset += Character.charCount(text.codePointAt(offset));
+        }
+        offsets[count] = end;
+        return offsets;
+    }
+
+    /**
+     * 片段中每个字的位置上产生一元到三元组
+     */
+    private static void addIndexGrams(List<Token> tokens, String text, int[] offsets, int basePosition) {
+        int runLength = offsets.length - 1;
+        for (int k = 0; k < runLength; k++) {
+            for (int n = 1; n <= MAX_GRAM && k + n <= runLength; n++) {
+                tokens.add(new Token(text.substring(offsets[k], offsets[k + n]), basePosition + k, false));
+            }
+        }
+    }
+
+    /**
+     * 用步长为n的n元组覆盖片段, 末尾不足一组时向前对齐
+     * 例如 "数据库索引" -> "数据库"@0, "库索引"@2
+     */
+    private static void addQueryGrams(List<Token> tokens, String text, int[] offsets, int basePosition) {
+        int runLength = offsets.length - 1;
+        int gram = Math.min(runLength, MAX_GRAM);
+        int k = 0;
+        while (true) {
+            if (k + gram >= runLength) {
+                k = runLength - gram;
+                tokens.add(new Token(text.substring(offsets[k], offsets[k + gram]), basePosition + k, false));
+                return;
+            }
+            tokens.add(new Token(text.substring(offsets[k], offsets[k + gram]), basePosition + k, false));
+            k += gram;
+        }
+    }
+
+    /**
+     * 是否为中日韩文字(含假名, 谚文及扩展区汉字)
+     */
+    static boolean isCjk(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        if (script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL) {
+            return true;
+        }
+        //长音符等假名区中的通用字符
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(codePoint);
+        return block == Character.UnicodeBlock.HIRAGANA || block == Character.UnicodeBlock.KATAKANA;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Token {
+
+        /** 词项 */
+        private final String term;
+
+        /** 在文本中的位置 */
+        private final int position;
+
+        /** 查询时按前缀匹配词项 */
+        private final boolean prefix;
+    }
+}
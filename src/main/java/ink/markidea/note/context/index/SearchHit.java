@@ -0,0 +1,22 @@
+package ink.markidea.note.context.index;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 索引查询命中的笔记
+ */
+@Getter
+@AllArgsConstructor
+public class SearchHit {
+
+    private final String notebookName;
+
+    private final String noteTitle;
+
+    /** BM25 得分 */
+    private final double score;
+
+    /** 标题和正文中的命中次数 */
+    private final int hitCount;
+}
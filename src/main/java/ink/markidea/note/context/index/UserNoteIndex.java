@@ -0,0 +1,781 @@
+package ink.markidea.note.context.index;
+
+import ink.markidea.note.context.index.NoteTokenizer.Token;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * 单个用户的倒排索引: 词项 -> (笔记 -> 出现位置)
+ *
+ * 磁盘上是一个追加写的日志文件, 每次增删改笔记追加一条记录, 加载时按顺序回放.
+ * 每条记录为 [长度][内容][crc32], 写到一半崩溃时回放会在损坏处截断.
+ * 日志记录数远大于笔记数时重写为只包含当前笔记的快照.
+ *
+ * 内存中每个词项只保存一个字符串, 笔记通过引用词项对象清理倒排表, 不再各自持有词项的拷贝;
+ * 出现位置以与磁盘相同的差值变长编码保存在字节数组中, 查询时只解码候选笔记的位置.
+ */
+@Slf4j
+public class UserNoteIndex {
+
+    private static final int MAGIC = 0x4D494458;
+
+    /** 分词规则变化时需要升级版本, 旧索引会被重建 */
+    private static final int VERSION = 5;
+
+    private static final int HEADER_LENGTH = 8;
+
+    private static final byte OP_PUT = 1;
+
+    private static final byte OP_DELETE = 2;
+
+    private static final byte OP_RENAME_NOTEBOOK = 3;
+
+    private static final int MIN_COMPACT_RECORDS = 1024;
+
+    private static final int[] EMPTY_POSITIONS = new int[0];
+
+    /** BM25 参数 */
+    private static final double K1 = 1.2;
+
+    private static final double B = 0.75;
+
+    /** 标题命中的额外权重 */
+    private static final double TITLE_WEIGHT = 2.0;
+
+    private final File indexFile;
+
+    /** 笔记id(笔记本名/笔记标题) -> 笔记信息 */
+    private final Map<String, DocEntry> docs = new HashMap<>();
+
+    /** 词项 -> 包含该词项的笔记 按词项排序, 用于前缀查询 */
+    private final TreeMap<String, TermPostings> postings = new TreeMap<>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** 所有笔记正文的词项总数 用于计算平均长度 */
+    private long totalLength;
+
+    /** 日志中的记录数 */
+    private int logRecords;
+
+    public UserNoteIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * 从磁盘回放索引
+     * @return 索引文件不存在或版本不符时返回false, 需要重建
+     */
+    public boolean load() {
+        if (!indexFile.exists()) {
+            return false;
+        }
+        lock.writeLock().lock();
+        try {
+            long validLength = replay();
+            if (validLength < 0) {
+                clearInMemory();
+                return false;
+            }
+            if (validLength < indexFile.length()) {
+                log.warn("index file: {} is corrupted at {}, truncate it", indexFile.getAbsolutePath(), validLength);
+                try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+                    file.setLength(validLength);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            log.error("load index file: {} failed", indexFile.getAbsolutePath(), e);
+            clearInMemory();
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 新增或替换一篇笔记的索引
+     * @param contentHash 笔记内容的hashCode 用于判断笔记是否需要重新索引
+     */
+    public void putDocument(String notebookName, String noteTitle, int contentHash,
+                            List<Token> titleTokens, List<Token> contentTokens) {
+        putDocument(notebookName, noteTitle, contentHash, titleTokens, contentTokens, true);
+    }
+
+    /**
+     * @param persist 为false时只修改内存, 重建索引时最后统一写快照
+     */
+    public void putDocument(String notebookName, String noteTitle, int contentHash,
+                            List<Token> titleTokens, List<Token> contentTokens, boolean persist) {
+        Map<String, byte[]> docPostings = buildPostings(titleTokens, contentTokens);
+        String docId = docId(notebookName, noteTitle);
+        lock.writeLock().lock();
+        try {
+            removeInternal(docId);
+            DocEntry entry = addInternal(docId, notebookName, noteTitle, contentTokens.size(), contentHash, docPostings);
+            if (persist) {
+                appendRecord(encodePut(entry));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 笔记是否已按给定内容索引 服务自身写入的文件再次触发文件监听时据此跳过
+     */
+    public boolean isIndexed(String notebookName, String noteTitle, int contentHash) {
+        lock.readLock().lock();
+        try {
+            DocEntry entry = docs.get(docId(notebookName, noteTitle));
+            return entry != null && entry.contentHash == contentHash;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 获取笔记本下已索引的笔记标题
+     */
+    public Set<String> getNoteTitles(String notebookName) {
+        lock.readLock().lock();
+        try {
+            Set<String> titles = new HashSet<>();
+            for (DocEntry entry : docs.values()) {
+                if (entry.notebookName.equals(notebookName)) {
+                    titles.add(entry.noteTitle);
+                }
+            }
+            return titles;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void removeDocument(String notebookName, String noteTitle) {
+        lock.writeLock().lock();
+        try {
+            if (removeInternal(docId(notebookName, noteTitle))) {
+                appendRecord(encodeNames(OP_DELETE, notebookName, noteTitle));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void renameNotebook(String srcNotebookName, String targetNotebookName) {
+        lock.writeLock().lock();
+        try {
+            if (renameInternal(srcNotebookName, targetNotebookName)) {
+                appendRecord(encodeNames(OP_RENAME_NOTEBOOK, srcNotebookName, targetNotebookName));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 把当前内存中的索引写成快照, 替换原有日志
+     */
+    public void compact() {
+        lock.writeLock().lock();
+        try {
+            compactInternal();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 按短语查询: 所有查询词项必须按原有相对位置出现在标题或正文中
+     * 标记为前缀的查询词项匹配所有以它开头的词项
+     * @param queryTokens 查询分词结果
+     * @param notebookScope 搜索范围 为null时搜索全部笔记本
+     * @return 按得分从高到低排序的命中结果
+     */
+    public List<SearchHit> search(List<Token> queryTokens, Set<String> notebookScope) {
+        if (queryTokens.isEmpty()) {
+            return Collections.emptyList();
+        }
+        lock.readLock().lock();
+        try {
+            int termCount = queryTokens.size();
+            List<List<TermPostings>> termPostings = new ArrayList<>(termCount);
+            int[] offsets = new int[termCount];
+            int basePosition = queryTokens.get(0).getPosition();
+            int rarest = 0;
+            int rarestCount = Integer.MAX_VALUE;
+            for (int i = 0; i < termCount; i++) {
+                Token token = queryTokens.get(i);
+                List<TermPostings> matched = matchTerms(token);
+                if (matched.isEmpty()) {
+                    return Collections.emptyList();
+                }
+                termPostings.add(matched);
+                offsets[i] = token.getPosition() - basePosition;
+                int docCount = 0;
+                for (TermPostings posting : matched) {
+                    docCount += posting.docs.size();
+                }
+                if (docCount < rarestCount) {
+                    rarest = i;
+                    rarestCount = docCount;
+                }
+            }
+
+            //从最少的倒排表出发 与其余倒排表求交集
+            Set<DocEntry> candidates = new HashSet<>();
+            for (TermPostings posting : termPostings.get(rarest)) {
+                candidates.addAll(posting.docs.keySet());
+            }
+            List<Match> matches = new ArrayList<>();
+            int[][] contentPositions = new int[termCount][];
+            int[][] titlePositions = new int[termCount][];
+            for (DocEntry doc : candidates) {
+                if (notebookScope != null && !notebookScope.contains(doc.notebookName)) {
+                    continue;
+                }
+                boolean containsAll = true;
+                for (int i = 0; i < termCount && containsAll; i++) {
+                    containsAll = collectPositions(termPostings.get(i), doc, contentPositions, titlePositions, i);
+                }
+                if (!containsAll) {
+                    continue;
+                }
+                int contentHits = countPhrase(contentPositions, offsets);
+                int titleHits = countPhrase(titlePositions, offsets);
+                if (contentHits + titleHits > 0) {
+                    matches.add(new Match(doc, contentHits, titleHits));
+                }
+            }
+            return score(matches);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 查询词项匹配的倒排表 前缀查询在有序的词典上取以它开头的连续区间
+     */
+    private List<TermPostings> matchTerms(Token token) {
+        if (!token.isPrefix()) {
+            TermPostings posting = postings.get(token.getTerm());
+            return posting == null ? Collections.emptyList() : Collections.singletonList(posting);
+        }
+        List<TermPostings> matched = new ArrayList<>();
+        for (Map.Entry<String, TermPostings> entry : postings.tailMap(token.getTerm()).entrySet()) {
+            if (!entry.getKey().startsWith(token.getTerm())) {
+                break;
+            }
+            matched.add(entry.getValue());
+        }
+        return matched;
+    }
+
+    /**
+     * 解码笔记中一个查询词项的出现位置, 前缀匹配到多个词项时合并
+     * @return 笔记不包含该查询词项时返回false
+     */
+    private static boolean collectPositions(List<TermPostings> alternatives, DocEntry doc,
+                                            int[][] contentPositions, int[][] titlePositions, int index) {
+        int[] content = null;
+        int[] title = null;
+        int[][] decodedContent = new int[1][];
+        int[][] decodedTitle = new int[1][];
+        for (TermPostings posting : alternatives) {
+            byte[] data = posting.docs.get(doc);
+            if (data == null) {
+                continue;
+            }
+            decodePositions(data, decodedContent, decodedTitle, 0);
+            content = content == null ? decodedContent[0] : mergePositions(content, decodedContent[0]);
+            title = title == null ? decodedTitle[0] : mergePositions(title, decodedTitle[0]);
+        }
+        if (content == null) {
+            return false;
+        }
+        contentPositions[index] = content;
+        titlePositions[index] = title;
+        return true;
+    }
+
+    /**
+     * 合并两个有序的位置数组 同一位置只会出现在一个词项中
+     */
+    private static int[] mergePositions(int[] first, int[] second) {
+        if (first.length == 0) {
+            return second;
+        }
+        if (second.length == 0) {
+            return first;
+        }
+        int[] merged = new int[first.length + second.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < first.length && j < second.length) {
+            merged[k++] = first[i] <= second[j] ? first[i++] : second[j++];
+        }
+        while (i < first.length) {
+            merged[k++] = first[i++];
+        }
+        while (j < second.length) {
+            merged[k++] = second[j++];
+        }
+        return merged;
+    }
+
+    private List<SearchHit> score(List<Match> matches) {
+        int docCount = docs.size();
+        double idf = Math.log(1 + (docCount - matches.size() + 0.5) / (matches.size() + 0.5));
+        double avgLength = docCount == 0 ? 1 : Math.max(1.0, (double) totalLength / docCount);
+        List<SearchHit> hits = new ArrayList<>(matches.size());
+        for (Match match : matches) {
+            double tf = match.contentHits;
+            double norm = K1 * (1 - B + B * match.doc.length / avgLength);
+            double score = idf * tf * (K1 + 1) / (tf + norm)
+                    + TITLE_WEIGHT * idf * match.titleHits / (match.titleHits + 1.0);
+            hits.add(new SearchHit(match.doc.notebookName, match.doc.noteTitle, score,
+                    match.contentHits + match.titleHits));
+        }
+        hits.sort((h1, h2) -> {
+            int result = Double.compare(h2.getScore(), h1.getScore());
+            return result != 0 ? result : h2.getHitCount() - h1.getHitCount();
+        });
+        return hits;
+    }
+
+    /**
+     * 统计短语出现次数
+     * @param positions 每个查询词项在笔记中的出现位置
+     */
+    private static int countPhrase(int[][] positions, int[] offsets) {
+        int[] firstPositions = positions[0];
+        if (positions.length == 1) {
+            return firstPositions.length;
+        }
+        int count = 0;
+        outer:
+        for (int position : firstPositions) {
+            for (int i = 1; i < positions.length; i++) {
+                if (Arrays.binarySearch(positions[i], position + offsets[i]) < 0) {
+                    continue outer;
+                }
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return 词项 -> 编码后的出现位置
+     */
+    private static Map<String, byte[]> buildPostings(List<Token> titleTokens, List<Token> contentTokens) {
+        Map<String, List<Integer>> contentPositions = groupPositions(contentTokens);
+        Map<String, List<Integer>> titlePositions = groupPositions(titleTokens);
+        Set<String> terms = new HashSet<>(contentPositions.keySet());
+        terms.addAll(titlePositions.keySet());
+        Map<String, byte[]> docPostings = new HashMap<>(terms.size() * 2);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (String term : terms) {
+                bytes.reset();
+                writePositions(out, contentPositions.get(term));
+                writePositions(out, titlePositions.get(term));
+                docPostings.put(term, bytes.toByteArray());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return docPostings;
+    }
+
+    private static Map<String, List<Integer>> groupPositions(List<Token> tokens) {
+        Map<String, List<Integer>> map = new HashMap<>();
+        for (Token token : tokens) {
+            map.computeIfAbsent(token.getTerm(), k -> new ArrayList<>()).add(token.getPosition());
+        }
+        return map;
+    }
+
+    private DocEntry addInternal(String docId, String notebookName, String noteTitle, int length, int contentHash,
+                                 Map<String, byte[]> docPostings) {
+        TermPostings[] terms = new TermPostings[docPostings.size()];
+        DocEntry entry = new DocEntry(notebookName, noteTitle, length, contentHash, terms);
+        int i = 0;
+        for (Map.Entry<String, byte[]> posting : docPostings.entrySet()) {
+            TermPostings termPostings = postings.get(posting.getKey());
+            if (termPostings == null) {
+                termPostings = new TermPostings(posting.getKey());
+                postings.put(termPostings.term, termPostings);
+            }
+            termPostings.docs.put(entry, posting.getValue());
+            terms[i++] = termPostings;
+        }
+        docs.put(docId, entry);
+        totalLength += length;
+        return entry;
+    }
+
+    private boolean removeInternal(String docId) {
+        DocEntry entry = docs.remove(docId);
+        if (entry == null) {
+            return false;
+        }
+        totalLength -= entry.length;
+        for (TermPostings termPostings : entry.terms) {
+            termPostings.docs.remove(entry);
+            if (termPostings.docs.isEmpty()) {
+                postings.remove(termPostings.term);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 倒排表以笔记对象为key, 改名只需修改笔记对象
+     */
+    private boolean renameInternal(String srcNotebookName, String targetNotebookName) {
+        List<String> docIds = new ArrayList<>();
+        docs.forEach((docId, entry) -> {
+            if (entry.notebookName.equals(srcNotebookName)) {
+                docIds.add(docId);
+            }
+        });
+        for (String oldDocId : docIds) {
+            DocEntry entry = docs.remove(oldDocId);
+            String newDocId = docId(targetNotebookName, entry.noteTitle);
+            removeInternal(newDocId);
+            entry.notebookName = targetNotebookName;
+            docs.put(newDocId, entry);
+        }
+        return !docIds.isEmpty();
+    }
+
+    private void clearInMemory() {
+        docs.clear();
+        postings.clear();
+        totalLength = 0;
+        logRecords = 0;
+    }
+
+    private static String docId(String notebookName, String noteTitle) {
+        return notebookName + "/" + noteTitle;
+    }
+
+    /* ---------------- 持久化 ---------------- */
+
+    /**
+     * 回放日志
+     * @return 有效内容的长度, 文件头不符时返回-1
+     */
+    private long replay() throws IOException {
+        long fileLength = indexFile.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (fileLength < HEADER_LENGTH || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.info("index file: {} is outdated, rebuild it", indexFile.getAbsolutePath());
+                return -1;
+            }
+            long validLength = HEADER_LENGTH;
+            while (validLength < fileLength) {
+                int recordLength = in.readInt();
+                if (recordLength <= 0 || validLength + recordLength + 8 > fileLength) {
+                    break;
+                }
+                byte[] record = new byte[recordLength];
+                in.readFully(record);
+                if (in.readInt() != crc32(record)) {
+                    break;
+                }
+                applyRecord(record);
+                logRecords++;
+                validLength += recordLength + 8;
+            }
+            return validLength;
+        }
+    }
+
+    private void applyRecord(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte op = in.readByte();
+        String first = readString(in);
+        String second = readString(in);
+        switch (op) {
+            case OP_PUT:
+                int length = readVarInt(in);
+                int contentHash = in.readInt();
+                int termCount = readVarInt(in);
+                Map<String, byte[]> docPostings = new HashMap<>(termCount * 2);
+                for (int i = 0; i < termCount; i++) {
+                    String term = readString(in);
+                    docPostings.put(term, readPostingBytes(in));
+                }
+                String docId = docId(first, second);
+                removeInternal(docId);
+                addInternal(docId, first, second, length, contentHash, docPostings);
+                break;
+            case OP_DELETE:
+                removeInternal(docId(first, second));
+                break;
+            case OP_RENAME_NOTEBOOK:
+                renameInternal(first, second);
+                break;
+            default:
+                throw new IOException("unknown index op: " + op);
+        }
+    }
+
+    private void appendRecord(byte[] record) {
+        boolean newFile = !indexFile.exists() || indexFile.length() < HEADER_LENGTH;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, !newFile)))) {
+            if (newFile) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            writeRecord(out, record);
+            logRecords++;
+        } catch (IOException e) {
+            log.error("append to index file: {} failed", indexFile.getAbsolutePath(), e);
+            compactInternal();
+            return;
+        }
+        if (logRecords > Math.max(MIN_COMPACT_RECORDS, docs.size() * 3)) {
+            compactInternal();
+        }
+    }
+
+    private void compactInternal() {
+        File tmpFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (DocEntry entry : docs.values()) {
+                writeRecord(out, encodePut(entry));
+            }
+        } catch (IOException e) {
+            log.error("write index snapshot: {} failed", tmpFile.getAbsolutePath(), e);
+            return;
+        }
+        try {
+            Files.move(tmpFile.toPath(), indexFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logRecords = docs.size();
+        } catch (IOException e) {
+            log.error("replace index file: {} failed", indexFile.getAbsolutePath(), e);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        out.writeInt(record.length);
+        out.write(record);
+        out.writeInt(crc32(record));
+    }
+
+    private static byte[] encodePut(DocEntry entry) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(OP_PUT);
+            writeString(out, entry.notebookName);
+            writeString(out, entry.noteTitle);
+            writeVarInt(out, entry.length);
+            out.writeInt(entry.contentHash);
+            writeVarInt(out, entry.terms.length);
+            for (TermPostings termPostings : entry.terms) {
+                writeString(out, termPostings.term);
+                out.write(termPostings.docs.get(entry));
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] encodeNames(byte op, String first, String second) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(op);
+            writeString(out, first);
+            writeString(out, second);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 位置按升序差值编码: [个数][与前一个位置的差值]...
+     * 一个词项在一篇笔记中的编码为 正文位置 + 标题位置, 内存与磁盘相同
+     */
+    private static void writePositions(DataOutputStream out, List<Integer> positions) throws IOException {
+        if (positions == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        writeVarInt(out, positions.size());
+        int prev = 0;
+        for (int position : positions) {
+            writeVarInt(out, position - prev);
+            prev = position;
+        }
+    }
+
+    /**
+     * 解码一篇笔记中一个词项的正文和标题位置
+     */
+    private static void decodePositions(byte[] data, int[][] contentPositions, int[][] titlePositions, int index) {
+        int[] offset = new int[1];
+        contentPositions[index] = decodePositions(data, offset);
+        titlePositions[index] = decodePositions(data, offset);
+    }
+
+    private static int[] decodePositions(byte[] data, int[] offset) {
+        int count = decodeVarInt(data, offset);
+        if (count == 0) {
+            return EMPTY_POSITIONS;
+        }
+        int[] positions = new int[count];
+        int prev = 0;
+        for (int i = 0; i < count; i++) {
+            prev += decodeVarInt(data, offset);
+            positions[i] = prev;
+        }
+        return positions;
+    }
+
+    private static int decodeVarInt(byte[] data, int[] offset) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[offset[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * 从日志中原样读取一个词项的位置编码 同时校验格式
+     */
+    private static byte[] readPostingBytes(DataInputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int part = 0; part < 2; part++) {
+            int count = readVarInt(in);
+            writeVarInt(out, count);
+            for (int i = 0; i < count; i++) {
+                writeVarInt(out, readVarInt(in));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 28) {
+                throw new IOException("malformed varint");
+            }
+            b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * 字符串以 长度 + UTF-8字节 编码 不受writeUTF的64KB限制
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int crc32(byte[] bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, bytes.length);
+        return (int) crc32.getValue();
+    }
+
+    private static class DocEntry {
+
+        /** 笔记本改名时修改 */
+        private String notebookName;
+
+        private final String noteTitle;
+
+        /** 正文词项数 */
+        private final int length;
+
+        /** 索引时内容的hashCode */
+        private final int contentHash;
+
+        /** 笔记包含的所有词项 删除时据此清理倒排表 */
+        private final TermPostings[] terms;
+
+        private DocEntry(String notebookName, String noteTitle, int length, int contentHash, TermPostings[] terms) {
+            this.notebookName = notebookName;
+            this.noteTitle = noteTitle;
+            this.length = length;
+            this.contentHash = contentHash;
+            this.terms = terms;
+        }
+    }
+
+    /**
+     * 一个词项的倒排表 笔记 -> 编码后的出现位置
+     */
+    private static class TermPostings {
+
+        private final String term;
+
+        private final Map<DocEntry, byte[]> docs = new HashMap<>(2);
+
+        private TermPostings(String term) {
+            this.term = term;
+        }
+    }
+
+    private static class Match {
+
+        private final DocEntry doc;
+
+        private final int contentHits;
+
+        private final int titleHits;
+
+        private Match(DocEntry doc, int contentHits, int titleHits) {
+            this.doc = doc;
+            this.contentHits = contentHits;
+            this.titleHits = titleHits;
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package ink.markidea.note.context.note;
+
+import ink.markidea.note.entity.dto.UserNoteKey;
+import ink.markidea.note.service.IFileService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * 临时保存草稿的写回缓冲
+ *
+ * 自动保存的草稿先保存在内存中, 同一篇笔记连续的自动保存只保留最新一份;
+ * 最后一次保存 delayMs 毫秒后, 或第一次保存后最多 maxDelayMs 毫秒, 由后台任务写入磁盘.
+ * 正式保存, 删除, 移动等操作前由 NoteServiceImpl 写入或丢弃对应的草稿, 关闭时全部写入.
+ *
+ * 每份草稿同时追加到 notesDir/.draft-journal 日志, 写入磁盘或丢弃后追加清除记录,
+ * 进程崩溃后启动时重放日志, 把仍未写入的草稿写回笔记文件. 缓冲清空时截断日志,
+ * 日志超过 journalMaxBytes 时只保留当前草稿重写.
+ * 追加日志失败时日志中的记录已不可信, 关闭并删除日志, 之后的草稿不再缓冲, 剩余的草稿尽快写入磁盘.
+ *
+ * 到期写入由独立的线程执行, 不与其他定时任务共用调度线程.
+ */
+@Component
+@Slf4j
+public class DraftBuffer {
+
+    private static final String JOURNAL_FILE = ".draft-journal";
+
+    private static final byte RECORD_DRAFT = 1;
+
+    private static final byte RECORD_CLEAR = 0;
+
+    /** 记录头 长度 + CRC32 */
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    @Value("${notesDir}")
+    private String notesDir;
+
+    @Value("${draftBuffer.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 最后一次保存后多久写入磁盘 单位毫秒
+     */
+    @Value("${draftBuffer.delayMs:3000}")
+    private long delayMs;
+
+    /**
+     * 持续保存时最多多久写入一次磁盘 单位毫秒
+     */
+    @Value("${draftBuffer.maxDelayMs:30000}")
+    private long maxDelayMs;
+
+    /**
+     * 每次追加日志后是否刷盘 关闭时只能覆盖进程崩溃, 不能覆盖断电
+     */
+    @Value("${draftBuffer.journalFsync:false}")
+    private boolean journalFsync;
+
+    @Value("${draftBuffer.journalMaxBytes:67108864}")
+    private long journalMaxBytes;
+
+    /**
+     * 检查到期草稿的间隔 单位毫秒
+     */
+    @Value("${draftBuffer.flushIntervalMs:1000}")
+    private long flushIntervalMs;
+
+    @Autowired
+    private IFileService fileService;
+
+    private final ConcurrentMap<UserNoteKey, Draft> drafts = new ConcurrentHashMap<>();
+
+    /**
+     * 草稿写入磁盘后的回调 参数为笔记
+     */
+    private final List<Consumer<UserNoteKey>> flushListeners = new CopyOnWriteArrayList<>();
+
+    private Path journalPath;
+
+    /** 为null时日志不可用 草稿不进入缓冲 */
+    private volatile FileChannel journal;
+
+    private ScheduledExecutorService flushExecutor;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        journalPath = new File(notesDir, JOURNAL_FILE).toPath();
+        try {
+            recover();
+            journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            journal.truncate(0);
+        } catch (IOException e) {
+            log.error("open draft journal: {} failed, drafts are written directly", journalPath, e);
+            journal = null;
+            return;
+        }
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "draft-buffer-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushExecutor.scheduleWithFixedDelay(() -> {
+            //抛出的异常会取消之后的执行
+            try {
+                flushDue();
+            } catch (RuntimeException e) {
+                log.error("flush due drafts failed", e);
+            }
+        }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (flushExecutor != null) {
+            flushExecutor.shutdown();
+        }
+        flushAll();
+        if (journal == null) {
+            return;
+        }
+        synchronized (this) {
+            try {
+                if (drafts.isEmpty()) {
+                    journal.truncate(0);
+                }
+                journal.close();
+            } catch (IOException e) {
+                log.warn("close draft journal failed", e);
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * 保存草稿
+     * @return 未开启或日志写入失败时返回false, 调用方应直接写入磁盘
+     */
+    public boolean put(UserNoteKey key, String content) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (journal == null || !appendJournal(RECORD_DRAFT, key, content)) {
+                return false;
+            }
+            Draft previous = drafts.get(key);
+            drafts.put(key, new Draft(content, previous == null ? now : previous.firstNanos, now));
+            return true;
+        }
+    }
+
+    /**
+     * 获取尚未写入磁盘的草稿
+     * @return 没有时返回null
+     */
+    public String get(UserNoteKey key) {
+        Draft draft = drafts.get(key);
+        return draft == null ? null : draft.content;
+    }
+
+    /**
+     * 立即把草稿写入磁盘 没有草稿时不做任何事
+     */
+    public void flush(UserNoteKey key) {
+        synchronized (key.lock()) {
+            Draft draft = drafts.get(key);
+            if (draft == null) {
+                return;
+            }
+            File noteFile = getNoteFile(key);
+            if (!noteFile.getParentFile().isDirectory()) {
+                //笔记本已被删除或移走
+                log.warn("notebook of draft: {} not exists, discard it", noteFile);
+                discard(key);
+                return;
+            }
+            if (!fileService.writeStringToFile(draft.content, noteFile)) {
+                log.error("flush draft: {} failed, retry later", noteFile);
+                return;
+            }
+            removeDraft(key, draft);
+        }
+        flushListeners.forEach(listener -> listener.accept(key));
+    }
+
+    /**
+     * 丢弃草稿 用于正式保存, 删除等会覆盖笔记文件的操作
+     * 会等待正在进行的写入完成, 之后的写入不会再覆盖笔记文件
+     */
+    public void discard(UserNoteKey key) {
+        synchronized (key.lock()) {
+            removeDraft(key, null);
+        }
+    }
+
+    public void flushNotebook(String username, String notebookName) {
+        forEachKey(key -> key.getUsername().equals(username) && key.getNotebookName().equals(notebookName), this::flush);
+    }
+
+    /**
+     * 写入用户的全部草稿 用于拉取远程仓库等绕过草稿直接改动工作区的操作
+     */
+    public void flushUser(String username) {
+        forEachKey(key -> key.getUsername().equals(username), this::flush);
+    }
+
+    /**
+     * 获取用户尚未写入磁盘的草稿 相对用户仓库的路径
+     */
+    public Set<String> getPendingFiles(String username) {
+        Set<String> files = new HashSet<>();
+        for (UserNoteKey key : drafts.keySet()) {
+            if (key.getUsername().equals(username)) {
+                files.add(key.getNotebookName() + "/" + key.getNoteTitle() + ".md");
+            }
+        }
+        return files;
+    }
+
+    public void discardNotebook(String username, String notebookName) {
+        forEachKey(key -> key.getUsername().equals(username) && key.getNotebookName().equals(notebookName), this::discard);
+    }
+
+    public void flushAll() {
+        forEachKey(key -> true, this::flush);
+    }
+
+    public void addFlushListener(Consumer<UserNoteKey> listener) {
+        flushListeners.add(listener);
+    }
+
+    /**
+     * 写入到期的草稿 并在需要时整理日志
+     * 日志已关闭时剩余的草稿不再受保护, 全部立即写入
+     */
+    private void flushDue() {
+        if (drafts.isEmpty() && journal == null) {
+            return;
+        }
+        if (journal == null) {
+            flushAll();
+            return;
+        }
+        long now = System.nanoTime();
+        long delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMs);
+        long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+        forEachKey(key -> {
+            Draft draft = drafts.get(key);
+            return draft != null && (now - draft.lastNanos >= delayNanos || now - draft.firstNanos >= maxDelayNanos);
+        }, this::flush);
+        compactJournal();
+    }
+
+    private void forEachKey(Predicate<UserNoteKey> predicate, Consumer<UserNoteKey> action) {
+        for (UserNoteKey key : drafts.keySet()) {
+            if (!predicate.test(key)) {
+                continue;
+            }
+            try {
+                action.accept(key);
+            } catch (RuntimeException e) {
+                log.error("handle draft: {} failed", key, e);
+            }
+        }
+    }
+
+    /**
+     * @param expected 为null时移除任意草稿
+     */
+    private synchronized void removeDraft(UserNoteKey key, Draft expected) {
+        boolean removed = expected == null ? drafts.remove(key) != null : drafts.remove(key, expected);
+        if (removed && journal != null) {
+            //清除记录写入失败时appendJournal已关闭并删除日志, 重启后不会重放这份过期的草稿
+            appendJournal(RECORD_CLEAR, key, null);
+        }
+    }
+
+    private File getNoteFile(UserNoteKey key) {
+        return new File(new File(new File(notesDir, key.getUsername()), key.getNotebookName()), key.getNoteTitle() + ".md");
+    }
+
+    /**
+     * 追加日志 失败时关闭日志
+     * 失败的记录可能只写入了一部分, 之后追加的记录重放时读不到, 缺少的清除记录会让过期的草稿在重启后覆盖笔记
+     */
+    private boolean appendJournal(byte type, UserNoteKey key, String content) {
+        try {
+            ByteBuffer record = encodeRecord(type, key, content);
+            while (record.hasRemaining()) {
+                journal.write(record);
+            }
+            if (journalFsync) {
+                journal.force(false);
+            }
+            return true;
+        } catch (IOException e) {
+            log.error("append draft journal failed, stop buffering drafts", e);
+            closeJournal();
+            return false;
+        }
+    }
+
+    /**
+     * 关闭并删除日志 之后的草稿直接写入磁盘
+     */
+    private void closeJournal() {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.warn("close draft journal failed", e);
+        }
+        journal = null;
+        try {
+            Files.deleteIfExists(journalPath);
+        } catch (IOException e) {
+            log.error("delete draft journal: {} failed, remove it before restart", journalPath, e);
+        }
+    }
+
+    /**
+     * 缓冲为空时截断日志 日志过大时只保留当前草稿
+     * 重写先写入临时文件再原子替换, 过程中崩溃时旧日志仍完整
+     */
+    private synchronized void compactJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            if (drafts.isEmpty()) {
+                if (journal.size() > 0) {
+                    journal.truncate(0);
+                }
+                return;
+            }
+            if (journal.size() <= journalMaxBytes) {
+                return;
+            }
+            Path tmpPath = journalPath.resolveSibling(JOURNAL_FILE + ".tmp");
+            try (FileChannel tmpJournal = FileChannel.open(tmpPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (Map.Entry<UserNoteKey, Draft> entry : drafts.entrySet()) {
+                    ByteBuffer record = encodeRecord(RECORD_DRAFT, entry.getKey(), entry.getValue().content);
+                    while (record.hasRemaining()) {
+                        tmpJournal.write(record);
+                    }
+                }
+                tmpJournal.force(false);
+            }
+            Files.move(tmpPath, journalPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            journal.close();
+            journal = FileChannel.open(journalPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            log.error("compact draft journal failed", e);
+        }
+    }
+
+    /**
+     * 重放日志 把崩溃前未写入磁盘的草稿写回笔记文件
+     */
+    private void recover() throws IOException {
+        if (!Files.exists(journalPath)) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(journalPath));
+        Map<UserNoteKey, String> pending = new LinkedHashMap<>();
+        while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                //最后一条记录未写完整
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            if (crc32(payload) != crc) {
+                log.warn("draft journal record corrupted, stop replaying");
+                break;
+            }
+            try {
+                decodeRecord(payload, pending);
+            } catch (IOException | IllegalArgumentException e) {
+                log.warn("draft journal record malformed, stop replaying", e);
+                break;
+            }
+        }
+        for (Map.Entry<UserNoteKey, String> entry : pending.entrySet()) {
+            File noteFile = getNoteFile(entry.getKey());
+            if (!noteFile.getParentFile().isDirectory() || !fileService.writeStringToFile(entry.getValue(), noteFile)) {
+                log.error("recover draft: {} failed", noteFile);
+                continue;
+            }
+            log.info("recovered draft: {}", noteFile);
+        }
+    }
+
+    private static ByteBuffer encodeRecord(byte type, UserNoteKey key, String content) throws IOException {
+        ByteArrayOutputStream payloadStream = new ByteArrayOutputStream(content == null ? 64 : content.length() + 64);
+        DataOutputStream out = new DataOutputStream(payloadStream);
+        out.writeByte(type);
+        out.writeUTF(key.getUsername());
+        out.writeUTF(key.getNotebookName());
+        out.writeUTF(key.getNoteTitle());
+        if (type == RECORD_DRAFT) {
+            byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        out.flush();
+        byte[] payload = payloadStream.toByteArray();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + payload.length);
+        record.putInt(payload.length).putInt(crc32(payload)).put(payload);
+        record.flip();
+        return record;
+    }
+
+    private static void decodeRecord(byte[] payload, Map<UserNoteKey, String> pending) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        UserNoteKey key = UserNoteKey.of(in.readUTF(), in.readUTF(), in.readUTF());
+        if (type == RECORD_CLEAR) {
+            pending.remove(key);
+            return;
+        }
+        if (type != RECORD_DRAFT) {
+            throw new IllegalArgumentException("Unknown draft journal record type: " + type);
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        pending.put(key, new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private static int crc32(byte[] bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, bytes.length);
+        return (int) crc32.getValue();
+    }
+
+    private static class Draft {
+
+        private final String content;
+
+        /** 第一次未写入的保存 */
+        private final long firstNanos;
+
+        /** 最后一次保存 */
+        private final long lastNanos;
+
+        private Draft(String content, long firstNanos, long lastNanos) {
+            this.content = content;
+            this.firstNanos = firstNanos;
+            this.lastNanos = lastNanos;
+        }
+    }
+}
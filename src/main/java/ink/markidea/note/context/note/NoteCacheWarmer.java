@@ -0,0 +1,153 @@
+package ink.markidea.note.context.note;
+
+import ink.markidea.note.service.INoteService;
+import ink.markidea.note.util.ThreadLocalUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 缓存预热
+ *
+ * 用户登录时, 以及启动时对最近活跃的用户, 在后台载入文章id表, 最近修改的笔记的预览和笔记本目录树.
+ * 预热只使用一个低优先级线程, 预览逐个加载, 每个用户最多预热 maxNotesPerUser 篇笔记, 耗时不超过 budgetMs,
+ * 不会占满预览加载线程池影响正常请求.
+ */
+@Component
+@Slf4j
+public class NoteCacheWarmer implements ApplicationListener<ApplicationReadyEvent> {
+
+    @Value("${notesDir}")
+    private String notesDir;
+
+    @Value("${warmUp.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 启动时预热最近多少天内有改动的用户
+     */
+    @Value("${warmUp.recentDays:7}")
+    private int recentDays;
+
+    /**
+     * 启动时最多预热的用户数 也是等待预热的用户数上限
+     */
+    @Value("${warmUp.maxUsers:20}")
+    private int maxUsers;
+
+    @Value("${warmUp.maxNotesPerUser:200}")
+    private int maxNotesPerUser;
+
+    /**
+     * 每个用户的预热时间上限 单位毫秒
+     */
+    @Value("${warmUp.budgetMs:5000}")
+    private long budgetMs;
+
+    @Autowired
+    private INoteService noteService;
+
+    private ExecutorService executor;
+
+    /** 等待预热的用户 避免重复登录时重复排队 */
+    private final Set<String> pendingUsers = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(maxUsers), runnable -> {
+                    Thread thread = new Thread(runnable, "note-cache-warmer");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        if (!enabled) {
+            return;
+        }
+        List<String> recentUsers = listRecentUsers();
+        if (!recentUsers.isEmpty()) {
+            log.info("warm up caches of recently active users: {}", recentUsers);
+        }
+        recentUsers.forEach(this::warmUp);
+    }
+
+    /**
+     * 在后台预热用户的缓存 队列已满时放弃
+     */
+    public void warmUp(String username) {
+        if (!enabled || !pendingUsers.add(username)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                pendingUsers.remove(username);
+                long start = System.currentTimeMillis();
+                ThreadLocalUtil.setUsername(username);
+                try {
+                    noteService.warmUp(maxNotesPerUser, budgetMs);
+                    log.info("warm up caches of user: {} cost {} ms", username, System.currentTimeMillis() - start);
+                } catch (RuntimeException e) {
+                    log.error("warm up caches of user: {} failed", username, e);
+                } finally {
+                    ThreadLocalUtil.clearUsername();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingUsers.remove(username);
+        }
+    }
+
+    /**
+     * 按最近改动时间排序的用户 改动时间取git索引文件和用户目录修改时间的较大者
+     */
+    private List<String> listRecentUsers() {
+        File[] userDirs = new File(notesDir).listFiles(file -> file.isDirectory() && !file.getName().startsWith("."));
+        if (userDirs == null) {
+            return Collections.emptyList();
+        }
+        long since = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(recentDays);
+        return Arrays.stream(userDirs)
+                .filter(userDir -> lastActiveTime(userDir) >= since)
+                .sorted(Comparator.comparingLong(NoteCacheWarmer::lastActiveTime).reversed())
+                .limit(maxUsers)
+                .map(File::getName)
+                .collect(Collectors.toList());
+    }
+
+    private static long lastActiveTime(File userDir) {
+        return Math.max(userDir.lastModified(), new File(userDir, ".git/index").lastModified());
+    }
+}
@@ -0,0 +1,247 @@
+package ink.markidea.note.context.note;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import ink.markidea.note.entity.dto.NoteContent;
+import ink.markidea.note.entity.dto.NotePreviewInfo;
+import ink.markidea.note.entity.dto.UserNoteKey;
+import ink.markidea.note.service.INoteIndexService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * 笔记目录监听
+ *
+ * 监听 notesDir 下的用户目录和笔记本目录, 笔记文件被直接修改(拉取远程仓库, 手工编辑等)时
+ * 使对应笔记的内容缓存, 预览缓存和目录树快照失效, 避免在缓存过期前读到旧内容, 并按文件重新索引.
+ * 目录结构为 用户名/笔记本名/笔记标题.md, 以点开头的目录(如.git)不监听.
+ */
+@Component
+@Slf4j
+public class NoteFileWatcher {
+
+    private static final String NOTE_EXTENSION = ".md";
+
+    @Value("${notesDir}")
+    private String notesDir;
+
+    @Value("${noteWatcher.enabled:true}")
+    private boolean enabled;
+
+    @Autowired
+    @Qualifier("userNoteCache")
+    private LoadingCache<UserNoteKey, NoteContent> userNoteCache;
+
+    @Autowired
+    @Qualifier("userNotePreviewCache")
+    private AsyncLoadingCache<UserNoteKey, NotePreviewInfo> userNotePreviewCache;
+
+    @Autowired
+    private NotebookTreeCache notebookTreeCache;
+
+    @Autowired
+    private INoteIndexService noteIndexService;
+
+    private Path rootPath;
+
+    private WatchService watchService;
+
+    /** 监听key -> 被监听的目录 */
+    private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+
+    private Thread watchThread;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        rootPath = new File(notesDir).toPath().toAbsolutePath().normalize();
+        try {
+            watchService = rootPath.getFileSystem().newWatchService();
+            register(rootPath);
+            File[] userDirs = rootPath.toFile().listFiles();
+            if (userDirs != null) {
+                for (File userDir : userDirs) {
+                    if (isWatchedDir(userDir)) {
+                        registerUserDir(userDir.toPath());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("watch notes dir: {} failed, caches rely on expiry only", notesDir, e);
+            closeQuietly();
+            return;
+        }
+        watchThread = new Thread(this::watch, "note-file-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+        log.info("watching {} directories under {}", watchedDirs.size(), rootPath);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        closeQuietly();
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = watchedDirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                try {
+                    if (event.kind() == OVERFLOW) {
+                        //事件丢失 无法确定改动范围 全部失效
+                        log.warn("file watch events overflow in {}, invalidate all note caches", dir);
+                        invalidateAll();
+                    } else if (dir != null) {
+                        onEvent(event.kind(), dir.resolve((Path) event.context()));
+                    }
+                } catch (RuntimeException e) {
+                    log.error("handle file watch event: {} {} failed", event.kind(), event.context(), e);
+                }
+            }
+            if (!key.reset()) {
+                watchedDirs.remove(key);
+            }
+        }
+    }
+
+    private void onEvent(WatchEvent.Kind<?> kind, Path path) {
+        Path relativePath = rootPath.relativize(path);
+        String username = relativePath.getName(0).toString();
+        if (username.startsWith(".")) {
+            return;
+        }
+        switch (relativePath.getNameCount()) {
+            case 1:
+                //用户目录
+                if (kind == ENTRY_CREATE && isWatchedDir(path.toFile())) {
+                    registerUserDir(path);
+                }
+                invalidateUser(username);
+                break;
+            case 2:
+                //笔记本目录
+                String notebookName = relativePath.getName(1).toString();
+                if (notebookName.startsWith(".")) {
+                    return;
+                }
+                if (kind == ENTRY_CREATE && isWatchedDir(path.toFile())) {
+                    registerQuietly(path);
+                }
+                invalidateKeys(key -> key.getUsername().equals(username) && key.getNotebookName().equals(notebookName));
+                notebookTreeCache.invalidate(username);
+                //笔记本整体增删或改名 只重新索引这个笔记本, 服务自身改名等已索引的内容不会重新分词
+                noteIndexService.reindexNotebook(username, notebookName);
+                if (kind == ENTRY_DELETE) {
+                    UserNoteKey.forgetNotebook(username, notebookName);
+                }
+                break;
+            case 3:
+                //笔记文件
+                String fileName = relativePath.getName(2).toString();
+                if (!fileName.endsWith(NOTE_EXTENSION)) {
+                    return;
+                }
+                UserNoteKey noteKey = UserNoteKey.of(username, relativePath.getName(1).toString(),
+                        fileName.substring(0, fileName.length() - NOTE_EXTENSION.length()));
+                userNotePreviewCache.synchronous().invalidate(noteKey);
+                userNoteCache.invalidate(noteKey);
+                notebookTreeCache.invalidateNote(username, noteKey.getNotebookName(), noteKey.getNoteTitle());
+                //服务自身的写入已经索引 内容相同时只读文件不重新分词
+                noteIndexService.reindexNote(username, noteKey.getNotebookName(), noteKey.getNoteTitle());
+                if (kind == ENTRY_DELETE) {
+                    UserNoteKey.forget(username, noteKey.getNotebookName(), noteKey.getNoteTitle());
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void registerUserDir(Path userDir) {
+        try {
+            register(userDir);
+        } catch (IOException e) {
+            log.error("watch user dir: {} failed", userDir, e);
+            return;
+        }
+        File[] notebookDirs = userDir.toFile().listFiles();
+        if (notebookDirs == null) {
+            return;
+        }
+        for (File notebookDir : notebookDirs) {
+            if (isWatchedDir(notebookDir)) {
+                registerQuietly(notebookDir.toPath());
+            }
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        watchedDirs.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+    }
+
+    private void registerQuietly(Path dir) {
+        try {
+            register(dir);
+        } catch (IOException e) {
+            log.error("watch notebook dir: {} failed", dir, e);
+        }
+    }
+
+    private static boolean isWatchedDir(File file) {
+        return file.isDirectory() && !file.getName().startsWith(".");
+    }
+
+    private void invalidateUser(String username) {
+        invalidateKeys(key -> key.getUsername().equals(username));
+        notebookTreeCache.invalidate(username);
+    }
+
+    private void invalidateAll() {
+        userNotePreviewCache.synchronous().invalidateAll();
+        userNoteCache.invalidateAll();
+        File[] userDirs = rootPath.toFile().listFiles();
+        if (userDirs != null) {
+            for (File userDir : userDirs) {
+                notebookTreeCache.invalidate(userDir.getName());
+            }
+        }
+    }
+
+    private void invalidateKeys(Predicate<UserNoteKey> predicate) {
+        userNotePreviewCache.synchronous().asMap().keySet().removeIf(predicate);
+        userNoteCache.asMap().keySet().removeIf(predicate);
+    }
+
+    private void closeQuietly() {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.warn("close file watch service failed", e);
+        }
+    }
+}
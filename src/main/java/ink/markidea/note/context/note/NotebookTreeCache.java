@@ -0,0 +1,274 @@
+package ink.markidea.note.context.note;
+
+import ink.markidea.note.context.git.DirtyNoteTracker;
+import ink.markidea.note.entity.vo.NoteVo;
+import ink.markidea.note.entity.vo.NotebookVo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+
+/**
+ * 用户笔记本目录树缓存
+ *
+ * 每个用户在内存中保存一份笔记本和笔记列表的快照, 读取侧边栏直接返回快照.
+ * 笔记的增删改由 NoteServiceImpl 标记对应的笔记或笔记本失效, 下次读取时只重新加载失效的部分;
+ * 每隔 checkIntervalMs 毫秒读取时再比较一次目录的修改时间, 以发现绕过服务直接修改磁盘的情况.
+ */
+@Component
+public class NotebookTreeCache {
+
+    @Value("${notesDir}")
+    private String notesDir;
+
+    @Value("${notebookTree.checkIntervalMs:5000}")
+    private long checkIntervalMs;
+
+    @Autowired
+    private DirtyNoteTracker dirtyNoteTracker;
+
+    private final ConcurrentMap<String, UserNotebookTree> treeMap = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        //后台对账修正了临时保存状态
+        dirtyNoteTracker.addChangeListener(this::invalidate);
+    }
+
+    /**
+     * 获取用户的笔记本目录树
+     * @param noteBuilder 由笔记本名和笔记文件生成笔记信息
+     */
+    public List<NotebookVo> getTree(String username, BiFunction<String, File, NoteVo> noteBuilder) {
+        return getSnapshot(username, noteBuilder).notebooks;
+    }
+
+    /**
+     * 获取笔记本中的笔记 按修改时间从新到旧
+     * @return 笔记本不存在时返回null
+     */
+    public List<NoteVo> getNotes(String username, String notebookName, BiFunction<String, File, NoteVo> noteBuilder) {
+        return getSnapshot(username, noteBuilder).notesMap.get(notebookName);
+    }
+
+    /**
+     * 笔记内容, 状态或文章信息有变化 或笔记被删除
+     * 服务写入笔记时临时文件的创建和重命名会改变目录的修改时间, 这里同时记下新的修改时间,
+     * 避免下次检查时把自身的写入当作外部修改而重新加载整个笔记本
+     */
+    public void invalidateNote(String username, String notebookName, String noteTitle) {
+        UserNotebookTree tree = treeMap.get(username);
+        if (tree == null) {
+            return;
+        }
+        synchronized (tree) {
+            NotebookEntry entry = tree.notebooks.get(notebookName);
+            if (entry == null) {
+                tree.rootStale = true;
+            } else {
+                entry.staleTitles.add(noteTitle);
+                if (!entry.stale) {
+                    entry.dirMtime = new File(new File(notesDir, username), notebookName).lastModified();
+                }
+            }
+            tree.snapshot = null;
+        }
+    }
+
+    /**
+     * 笔记本被创建或需要整体重新加载
+     */
+    public void invalidateNotebook(String username, String notebookName) {
+        UserNotebookTree tree = treeMap.get(username);
+        if (tree == null) {
+            return;
+        }
+        synchronized (tree) {
+            NotebookEntry entry = tree.notebooks.get(notebookName);
+            if (entry == null) {
+                tree.rootStale = true;
+            } else {
+                entry.stale = true;
+            }
+            tree.snapshot = null;
+        }
+    }
+
+    /**
+     * 丢弃用户的整个目录树 用于删除, 重命名笔记本等操作
+     */
+    public void invalidate(String username) {
+        treeMap.remove(username);
+    }
+
+    private TreeSnapshot getSnapshot(String username, BiFunction<String, File, NoteVo> noteBuilder) {
+        UserNotebookTree tree = treeMap.computeIfAbsent(username, k -> new UserNotebookTree());
+        TreeSnapshot snapshot = tree.snapshot;
+        if (snapshot != null && System.currentTimeMillis() - tree.lastCheckMillis < checkIntervalMs) {
+            return snapshot;
+        }
+        synchronized (tree) {
+            refresh(new File(notesDir, username), tree, noteBuilder);
+            return tree.snapshot;
+        }
+    }
+
+    private void refresh(File userDir, UserNotebookTree tree, BiFunction<String, File, NoteVo> noteBuilder) {
+        long now = System.currentTimeMillis();
+        boolean checkDisk = now - tree.lastCheckMillis >= checkIntervalMs;
+        boolean changed = tree.snapshot == null;
+        if (tree.rootStale || (checkDisk && userDir.lastModified() != tree.rootMtime)) {
+            //先记录修改时间再读取目录 读取期间的修改会在下次检查时发现
+            tree.rootMtime = userDir.lastModified();
+            tree.notebooks = scanNotebooks(userDir, tree.notebooks);
+            tree.rootStale = false;
+            changed = true;
+        }
+        for (Map.Entry<String, NotebookEntry> notebook : tree.notebooks.entrySet()) {
+            NotebookEntry entry = notebook.getValue();
+            File notebookDir = new File(userDir, notebook.getKey());
+            if (entry.stale || (checkDisk && notebookDir.lastModified() != entry.dirMtime)) {
+                loadNotebook(notebook.getKey(), notebookDir, entry, noteBuilder);
+                changed = true;
+            } else if (!entry.staleTitles.isEmpty()) {
+                reloadNotes(notebook.getKey(), notebookDir, entry, noteBuilder);
+                changed = true;
+            }
+        }
+        if (checkDisk) {
+            tree.lastCheckMillis = now;
+        }
+        if (changed) {
+            tree.snapshot = buildSnapshot(tree);
+        }
+    }
+
+    /**
+     * 扫描用户目录下的笔记本 已加载的笔记本保留原有内容
+     */
+    private static Map<String, NotebookEntry> scanNotebooks(File userDir, Map<String, NotebookEntry> oldNotebooks) {
+        Map<String, NotebookEntry> notebooks = new LinkedHashMap<>();
+        File[] childFiles = userDir.listFiles();
+        if (childFiles == null) {
+            return notebooks;
+        }
+        for (File file : childFiles) {
+            if (!file.isDirectory() || file.getName().startsWith(".")) {
+                continue;
+            }
+            NotebookEntry entry = oldNotebooks.get(file.getName());
+            notebooks.put(file.getName(), entry == null ? new NotebookEntry() : entry);
+        }
+        return notebooks;
+    }
+
+    private static void loadNotebook(String notebookName, File notebookDir, NotebookEntry entry,
+                                     BiFunction<String, File, NoteVo> noteBuilder) {
+        entry.dirMtime = notebookDir.lastModified();
+        entry.notes.clear();
+        File[] childFiles = notebookDir.listFiles();
+        if (childFiles != null) {
+            for (File file : childFiles) {
+                if (file.isFile() && isNoteFile(file.getName())) {
+                    entry.notes.add(new NoteEntry(noteBuilder.apply(notebookName, file), file.lastModified()));
+                }
+            }
+        }
+        entry.notes.sort(NoteEntry.NEWEST_FIRST);
+        entry.stale = false;
+        entry.staleTitles.clear();
+    }
+
+    /**
+     * 只重新加载失效的笔记
+     */
+    private static void reloadNotes(String notebookName, File notebookDir, NotebookEntry entry,
+                                    BiFunction<String, File, NoteVo> noteBuilder) {
+        entry.notes.removeIf(note -> entry.staleTitles.contains(note.noteVo.getTitle()));
+        for (String noteTitle : entry.staleTitles) {
+            File file = new File(notebookDir, noteTitle + ".md");
+            if (file.isFile()) {
+                entry.notes.add(new NoteEntry(noteBuilder.apply(notebookName, file), file.lastModified()));
+            }
+        }
+        entry.notes.sort(NoteEntry.NEWEST_FIRST);
+        entry.staleTitles.clear();
+    }
+
+    private static TreeSnapshot buildSnapshot(UserNotebookTree tree) {
+        List<NotebookVo> notebooks = new ArrayList<>(tree.notebooks.size());
+        Map<String, List<NoteVo>> notesMap = new HashMap<>(tree.notebooks.size() * 2);
+        for (Map.Entry<String, NotebookEntry> notebook : tree.notebooks.entrySet()) {
+            List<NoteVo> notes = new ArrayList<>(notebook.getValue().notes.size());
+            notebook.getValue().notes.forEach(note -> notes.add(note.noteVo));
+            List<NoteVo> unmodifiableNotes = Collections.unmodifiableList(notes);
+            notebooks.add(new NotebookVo().setNotebookName(notebook.getKey()).setNoteList(unmodifiableNotes));
+            notesMap.put(notebook.getKey(), unmodifiableNotes);
+        }
+        return new TreeSnapshot(Collections.unmodifiableList(notebooks), notesMap);
+    }
+
+    private static boolean isNoteFile(String fileName) {
+        return fileName.toLowerCase().endsWith(".md");
+    }
+
+    private static class UserNotebookTree {
+
+        /** 笔记本名 -> 笔记本 */
+        private Map<String, NotebookEntry> notebooks = new LinkedHashMap<>();
+
+        /** 用户目录的修改时间 */
+        private long rootMtime;
+
+        /** 需要重新扫描笔记本列表 */
+        private boolean rootStale = true;
+
+        private volatile long lastCheckMillis;
+
+        /** 为null时下次读取重新生成 */
+        private volatile TreeSnapshot snapshot;
+    }
+
+    private static class NotebookEntry {
+
+        private final List<NoteEntry> notes = new ArrayList<>();
+
+        private final Set<String> staleTitles = new HashSet<>();
+
+        private long dirMtime;
+
+        private boolean stale = true;
+    }
+
+    private static class NoteEntry {
+
+        private static final Comparator<NoteEntry> NEWEST_FIRST = (n1, n2) -> Long.compare(n2.mtime, n1.mtime);
+
+        private final NoteVo noteVo;
+
+        private final long mtime;
+
+        private NoteEntry(NoteVo noteVo, long mtime) {
+            this.noteVo = noteVo;
+            this.mtime = mtime;
+        }
+    }
+
+    private static class TreeSnapshot {
+
+        private final List<NotebookVo> notebooks;
+
+        private final Map<String, List<NoteVo>> notesMap;
+
+        private TreeSnapshot(List<NotebookVo> notebooks, Map<String, List<NoteVo>> notesMap) {
+            this.notebooks = notebooks;
+            this.notesMap = notesMap;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package ink.markidea.note.context.note;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 堆外笔记内容存储
+ *
+ * 按需申请固定大小的直接内存块(slab), 每个slab切分为等长的block, 一条内容占用若干个不要求连续的block,
+ * 释放后block放回空闲栈复用, 不存在碎片. 缓存中只保存记录block编号的句柄.
+ * 总容量达到 maxBytes 后申请失败, 由调用方退回堆内存储.
+ */
+public class OffHeapNoteStore {
+
+    private final int blockSize;
+
+    private final int blocksPerSlab;
+
+    private final int maxBlocks;
+
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+
+    /** 空闲block编号 */
+    private int[] freeBlocks = new int[0];
+
+    private int freeCount;
+
+    /** 已申请的block数 */
+    private int createdBlocks;
+
+    private long usedBytes;
+
+    public OffHeapNoteStore(long maxBytes, int slabBytes, int blockSize) {
+        if (blockSize <= 0 || slabBytes < blockSize) {
+            throw new IllegalArgumentException("Invalid off-heap slab size: " + slabBytes + " or block size: " + blockSize);
+        }
+        this.blockSize = blockSize;
+        this.blocksPerSlab = slabBytes / blockSize;
+        this.maxBlocks = (int) Math.min(Integer.MAX_VALUE, maxBytes / blockSize / blocksPerSlab * blocksPerSlab);
+    }
+
+    /**
+     * 写入堆外内存
+     * @return 容量不足时返回null
+     */
+    public Handle store(byte[] data) {
+        int[] blocks = allocate((data.length + blockSize - 1) / blockSize);
+        if (blocks == null) {
+            return null;
+        }
+        for (int i = 0; i < blocks.length; i++) {
+            int offset = i * blockSize;
+            ByteBuffer buffer = blockBuffer(blocks[i]);
+            buffer.put(data, offset, Math.min(blockSize, data.length - offset));
+        }
+        return new Handle(blocks, data.length);
+    }
+
+    /**
+     * 读出内容
+     * @return 已被释放时返回null
+     */
+    public byte[] read(Handle handle) {
+        synchronized (handle) {
+            if (handle.released) {
+                return null;
+            }
+            byte[] data = new byte[handle.length];
+            for (int i = 0; i < handle.blocks.length; i++) {
+                int offset = i * blockSize;
+                blockBuffer(handle.blocks[i]).get(data, offset, Math.min(blockSize, data.length - offset));
+            }
+            return data;
+        }
+    }
+
+    /**
+     * 释放内容占用的block 可重复调用
+     */
+    public void release(Handle handle) {
+        synchronized (handle) {
+            if (handle.released) {
+                return;
+            }
+            handle.released = true;
+        }
+        synchronized (this) {
+            for (int block : handle.blocks) {
+                freeBlocks[freeCount++] = block;
+            }
+            usedBytes -= (long) handle.blocks.length * blockSize;
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return (long) createdBlocks * blockSize;
+    }
+
+    public long getMaxBytes() {
+        return (long) maxBlocks * blockSize;
+    }
+
+    private synchronized int[] allocate(int count) {
+        if (count > freeCount + (maxBlocks - createdBlocks)) {
+            return null;
+        }
+        while (freeCount < count) {
+            addSlab();
+        }
+        int[] blocks = new int[count];
+        for (int i = 0; i < count; i++) {
+            blocks[i] = freeBlocks[--freeCount];
+        }
+        usedBytes += (long) count * blockSize;
+        return blocks;
+    }
+
+    private void addSlab() {
+        slabs.add(ByteBuffer.allocateDirect(blocksPerSlab * blockSize));
+        if (freeBlocks.length < createdBlocks + blocksPerSlab) {
+            int[] newFreeBlocks = new int[createdBlocks + blocksPerSlab];
+            System.arraycopy(freeBlocks, 0, newFreeBlocks, 0, freeCount);
+            freeBlocks = newFreeBlocks;
+        }
+        //编号大的先入栈 优先使用编号小的block
+        for (int block = createdBlocks + blocksPerSlab - 1; block >= createdBlocks; block--) {
+            freeBlocks[freeCount++] = block;
+        }
+        createdBlocks += blocksPerSlab;
+    }
+
+    /**
+     * 定位到block起始位置的独立视图 不影响其他线程的读写位置
+     */
+    private ByteBuffer blockBuffer(int block) {
+        ByteBuffer slab;
+        synchronized (this) {
+            slab = slabs.get(block / blocksPerSlab);
+        }
+        ByteBuffer buffer = slab.duplicate();
+        buffer.position((block % blocksPerSlab) * blockSize);
+        return buffer;
+    }
+
+    /**
+     * 堆外内容的句柄
+     */
+    public static class Handle {
+
+        private final int[] blocks;
+
+        private final int length;
+
+        private boolean released;
+
+        private Handle(int[] blocks, int length) {
+            this.blocks = blocks;
+            this.length = length;
+        }
+
+        public int getBlockCount() {
+            return blocks.length;
+        }
+    }
+}
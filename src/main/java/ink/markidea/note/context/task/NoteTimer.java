@@ -1,14 +1,15 @@
 package ink.markidea.note.context.task;
 
+import ink.markidea.note.context.git.GitRepositoryPool;
 import ink.markidea.note.dao.UserRepository;
-import ink.markidea.note.entity.UserDo;
+import ink.markidea.note.entity.vo.PushStatusVo;
+import ink.markidea.note.util.DateTimeUtil;
 import ink.markidea.note.util.GitUtil;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.eclipse.jgit.api.Git;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationListener;
@@ -17,12 +18,27 @@ import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 定时任务
+ *
+ * 推送由提交驱动: 用户仓库有新提交时标记为待推送, 连续提交停止 debounceSeconds 秒后,
+ * 或第一次提交后最多 maxDelaySeconds 秒, 推送一次; 没有新提交的仓库不会推送.
+ * 推送任务提交到独立的线程池并行执行, 调度线程只负责分发,
+ * 一个远程仓库慢或卡住不会影响其他用户.
+ * 推送超时会被取消, 连续失败的仓库按指数退避延后重试.
  */
 @Component
 @EnableScheduling
@@ -32,28 +48,92 @@ public class NoteTimer implements ApplicationListener<ContextRefreshedEvent> {
     @Autowired
     private UserRepository userRepository;
 
-    @Value("${notesDir}")
-    private String notesDir;
+    @Autowired
+    private GitRepositoryPool gitRepositoryPool;
 
     @Value("${sshKeysDir}")
     private String sshKeysDir;
 
-    private volatile boolean isPushing = false;
+    /**
+     * 推送线程数
+     */
+    @Value("${push.threads:4}")
+    private int pushThreads;
+
+    /**
+     * 单次推送超时 单位秒
+     */
+    @Value("${push.timeoutSeconds:60}")
+    private int pushTimeoutSeconds;
+
+    /**
+     * 失败后首次重试间隔 之后每次失败翻倍 单位秒
+     */
+    @Value("${push.backoffBaseSeconds:10}")
+    private long backoffBaseSeconds;
+
+    /**
+     * 最长重试间隔 单位秒
+     */
+    @Value("${push.backoffMaxSeconds:1800}")
+    private long backoffMaxSeconds;
+
+    /**
+     * 最后一次提交后等待多久再推送 单位秒
+     */
+    @Value("${push.debounceSeconds:10}")
+    private long debounceSeconds;
+
+    /**
+     * 持续提交时最多延迟多久推送 单位秒
+     */
+    @Value("${push.maxDelaySeconds:120}")
+    private long maxDelaySeconds;
+
+    private ExecutorService pushExecutor;
 
-    //任务列表
-    private volatile List<PushToRemoteTask> pushToRemoteTaskList = new ArrayList<>();
+    //任务列表 用户名 -> 任务
+    private volatile Map<String, PushToRemoteTask> pushToRemoteTaskMap = new HashMap<>();
 
-    @Scheduled(fixedRate = 10 * 1000, initialDelay = 3 * 1000)//每三秒钟推送一次
+    @PostConstruct
+    private void init() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        pushExecutor = new ThreadPoolExecutor(pushThreads, pushThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "push-to-remote-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        //用户仓库有新提交时标记为待推送 仓库目录名即用户名
+        GitUtil.addCommitListener(repository -> markDirty(repository.getWorkTree().getName()));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        pushExecutor.shutdownNow();
+    }
+
+    @Scheduled(fixedDelayString = "${push.checkIntervalMs:2000}", initialDelay = 3 * 1000)
     public void pushLocalChangesToRemote(){
-        try{
-            if (isPushing){
-                return ;
+        long now = System.nanoTime();
+        long debounceNanos = TimeUnit.SECONDS.toNanos(debounceSeconds);
+        long maxDelayNanos = TimeUnit.SECONDS.toNanos(maxDelaySeconds);
+        for (PushToRemoteTask task : pushToRemoteTaskMap.values()) {
+            //上次推送仍在进行 只检查是否超时
+            if (task.cancelIfTimeout(now, TimeUnit.SECONDS.toNanos(pushTimeoutSeconds))) {
+                continue;
             }
-            isPushing = true;
-            //将每个任务
-            pushToRemoteTaskList.forEach(Runnable::run);
-        }finally {
-            isPushing = false;
+            task.submitIfDue(pushExecutor, now, debounceNanos, maxDelayNanos);
+        }
+    }
+
+    /**
+     * 用户仓库有新提交
+     */
+    public void markDirty(String username) {
+        PushToRemoteTask task = pushToRemoteTaskMap.get(username);
+        if (task != null) {
+            task.markDirty(System.nanoTime());
         }
     }
 
@@ -62,31 +142,41 @@ public class NoteTimer implements ApplicationListener<ContextRefreshedEvent> {
         refreshPushTaskList();
     }
 
+    /**
+     * 重新加载推送任务 已有用户的任务保留其状态
+     */
     public synchronized void refreshPushTaskList() {
+        Map<String, PushToRemoteTask> oldTaskMap = pushToRemoteTaskMap;
 
-        List<PushToRemoteTask> newTaskList = new ArrayList<>();
+        Map<String, PushToRemoteTask> newTaskMap = new HashMap<>();
         userRepository.findAll().stream()
                 .filter(userDO -> userDO.isPush() && StringUtils.isNotBlank(userDO.getRemoteRepository()))
                 .forEach(
                 userDO -> {
-                    PushToRemoteTask task = new PushToRemoteTask()
-                            .setUsername(userDO.getUsername())
-                            .setLocalRepoPath(new File(notesDir, userDO.getUsername()).getAbsolutePath())//本地仓库地址
-                            .setRemoteRepoUrl(userDO.getRemoteRepository())//远程仓库地址
-                            .setPrivateKeyPath(new File(sshKeysDir, userDO.getUsername() + ".prv").getAbsolutePath());//私钥地址
-                    newTaskList.add(task);
+                    PushToRemoteTask task = oldTaskMap.get(userDO.getUsername());
+                    if (task == null || !task.getRemoteRepoUrl().equals(userDO.getRemoteRepository())) {
+                        task = new PushToRemoteTask()
+                                .setUsername(userDO.getUsername())
+                                .setGitRepositoryPool(gitRepositoryPool)//本地仓库
+                                .setRemoteRepoUrl(userDO.getRemoteRepository())//远程仓库地址
+                                .setPrivateKeyPath(new File(sshKeysDir, userDO.getUsername() + ".prv").getAbsolutePath())//私钥地址
+                                .setTimeoutSeconds(pushTimeoutSeconds)
+                                .setBackoffBaseNanos(TimeUnit.SECONDS.toNanos(backoffBaseSeconds))
+                                .setBackoffMaxNanos(TimeUnit.SECONDS.toNanos(backoffMaxSeconds));
+                    }
+                    newTaskMap.put(task.getUsername(), task);
                 }
             );
-        this.pushToRemoteTaskList = newTaskList;
+        this.pushToRemoteTaskMap = newTaskMap;
     }
 
-    public Boolean checkPushTaskStatus(String username){
-        for (PushToRemoteTask task : pushToRemoteTaskList){
-            if (task.getUsername().equals(username)){
-                return task.getStatus();
-            }
-        }
-        return null;
+    /**
+     * 获取用户的推送状态
+     * @return 用户未开启推送时返回null
+     */
+    public PushStatusVo checkPushTaskStatus(String username){
+        PushToRemoteTask task = pushToRemoteTaskMap.get(username);
+        return task == null ? null : task.getPushStatus();
     }
 
     @Getter
@@ -103,26 +193,157 @@ public class NoteTimer implements ApplicationListener<ContextRefreshedEvent> {
         //远程仓库地址
         private String remoteRepoUrl ;
 
-        //本地仓库地址
-        private String localRepoPath ;
+        //本地仓库池
+        private GitRepositoryPool gitRepositoryPool;
+
+        private int timeoutSeconds;
+
+        private long backoffBaseNanos;
+
+        private long backoffMaxNanos;
+
+        //推送至远程仓库状态 成功为true 失败为false 尚未推送为null
+        private Boolean status;
+
+        //正在执行的推送
+        private Future<?> future;
+
+        private long startNanos;
+
+        //第几次推送 用于忽略已被取消的推送的结果
+        private long attempt;
+
+        private long lastLatencyMillis = -1;
+
+        private long lastPushTime;
+
+        private int consecutiveFailures;
+
+        //退避结束时间 之前不再推送
+        private long nextAttemptNanos;
+
+        private String lastError;
 
-        //推送至远程仓库状态 成功为true 失败为false
-        private volatile Boolean status = true;
+        //是否有待推送的提交 新建任务时不确定 由推送前比较远程跟踪分支判断
+        private boolean dirty = true;
+
+        private long firstDirtyNanos = System.nanoTime();
+
+        private long lastDirtyNanos = firstDirtyNanos;
+
+        private synchronized void markDirty(long now) {
+            if (!dirty) {
+                dirty = true;
+                firstDirtyNanos = now;
+            }
+            lastDirtyNanos = now;
+        }
+
+        private synchronized void submitIfDue(ExecutorService executor, long now, long debounceNanos, long maxDelayNanos) {
+            if (future != null || !dirty) {
+                return;
+            }
+            if (consecutiveFailures > 0) {
+                //失败重试只受退避限制
+                if (now - nextAttemptNanos < 0) {
+                    return;
+                }
+            } else if (now - lastDirtyNanos < debounceNanos && now - firstDirtyNanos < maxDelayNanos) {
+                return;
+            }
+            //推送期间的新提交会重新标记
+            dirty = false;
+            startNanos = now;
+            attempt++;
+            future = executor.submit(this);
+        }
+
+        /**
+         * @return 推送是否仍在进行
+         */
+        private synchronized boolean cancelIfTimeout(long now, long timeoutNanos) {
+            if (future == null) {
+                return false;
+            }
+            if (now - startNanos < timeoutNanos) {
+                return true;
+            }
+            log.warn("push to remote: {} of user: {} timeout, cancel it", remoteRepoUrl, username);
+            future.cancel(true);
+            onFinish(attempt, false, "push timeout");
+            return false;
+        }
 
         @Override
         public void run() {
-            try{
-                //获取或初始化本地仓库
-                Git git = GitUtil.getOrInitGit(localRepoPath);
-                //设置远程仓库及分支
-                GitUtil.setRemoteRepositoryAndBranch(git,remoteRepoUrl);
+            long currentAttempt;
+            synchronized (this) {
+                currentAttempt = attempt;
+            }
+            //从仓库池中借出本地仓库 仓库不存在时初始化
+            try (GitRepositoryPool.GitHandle handle = gitRepositoryPool.borrow(username)) {
+                //设置远程仓库及分支 配置未变化时不重写
+                GitUtil.setRemoteRepositoryAndBranchIfChanged(handle.git(),remoteRepoUrl);
+                //上次推送后没有新提交
+                if (!GitUtil.hasUnpushedCommits(handle.git())) {
+                    onNothingToPush(currentAttempt);
+                    return;
+                }
                 //推送至远程仓库
-                GitUtil.pushToRemoteViaSsh(git, privateKeyPath);
-                status = true;
+                GitUtil.pushToRemoteViaSsh(handle.git(), privateKeyPath, timeoutSeconds);
+                onFinish(currentAttempt, true, null);
             }catch (Exception e){
                 log.error("push local changes to remote: {} failed", remoteRepoUrl, e);
-                status = false;
+                onFinish(currentAttempt, false, e.getMessage());
+            }
+        }
+
+        private synchronized void onNothingToPush(long finishedAttempt) {
+            if (finishedAttempt != attempt || future == null) {
+                return;
+            }
+            future = null;
+            status = true;
+            consecutiveFailures = 0;
+            lastError = null;
+        }
+
+        private synchronized void onFinish(long finishedAttempt, boolean success, String error) {
+            if (finishedAttempt != attempt || future == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            future = null;
+            status = success;
+            lastLatencyMillis = TimeUnit.NANOSECONDS.toMillis(now - startNanos);
+            lastPushTime = System.currentTimeMillis();
+            lastError = error;
+            if (success) {
+                consecutiveFailures = 0;
+                return;
+            }
+            //失败后保留待推送标记 退避结束后重试
+            dirty = true;
+            consecutiveFailures++;
+            long backoffNanos = backoffBaseNanos << Math.min(consecutiveFailures - 1, 30);
+            nextAttemptNanos = now + (backoffNanos <= 0 ? backoffMaxNanos : Math.min(backoffNanos, backoffMaxNanos));
+        }
+
+        private synchronized PushStatusVo getPushStatus() {
+            PushStatusVo statusVo = new PushStatusVo()
+                    .setSuccess(status)
+                    .setPushing(future != null)
+                    .setConsecutiveFailures(consecutiveFailures)
+                    .setLastError(lastError);
+            if (lastPushTime > 0) {
+                statusVo.setLastPushTime(DateTimeUtil.dateToStr(new Date(lastPushTime)))
+                        .setLastLatencyMillis(lastLatencyMillis);
+            }
+            if (consecutiveFailures > 0) {
+                long delayMillis = TimeUnit.NANOSECONDS.toMillis(nextAttemptNanos - System.nanoTime());
+                statusVo.setNextRetryTime(DateTimeUtil.dateToStr(new Date(System.currentTimeMillis() + Math.max(0, delayMillis))));
             }
+            return statusVo;
         }
     }
 }
@@ -1,7 +1,9 @@
 package ink.markidea.note.controller;
 
 import ink.markidea.note.entity.req.QueryHistoryContentReq;
+import ink.markidea.note.entity.req.QueryHistoryDiffReq;
 import ink.markidea.note.entity.resp.ServerResponse;
+import ink.markidea.note.entity.vo.NoteDiffVo;
 import ink.markidea.note.service.INoteService;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -24,4 +26,10 @@ public class HistoryController {
     public ServerResponse<String> queryHistoryContent(@RequestBody QueryHistoryContentReq req) {
         return noteService.getNoteHistoryContent(req.getNotebookName(), req.getNoteTitle(), req.getVersionRef());
     }
+
+    @ApiOperation(value = "比较两个版本", notes = "需要传入笔记本名，笔记名和两个版本号，新版本为空时与当前内容比较")
+    @PostMapping("/diff")
+    public ServerResponse<NoteDiffVo> diff(@RequestBody QueryHistoryDiffReq req) {
+        return noteService.getNoteHistoryDiff(req.getNotebookName(), req.getNoteTitle(), req.getOldRef(), req.getNewRef());
+    }
 }
@@ -1,5 +1,6 @@
 package ink.markidea.note.controller;
 
+import ink.markidea.note.entity.exception.PromptException;
 import ink.markidea.note.entity.req.NoteRequest;
 import ink.markidea.note.entity.req.NoteSearchRequest;
 import ink.markidea.note.entity.resp.ServerResponse;
@@ -7,6 +8,7 @@ import ink.markidea.note.entity.vo.NoteVersionVo;
 import ink.markidea.note.entity.vo.NoteVo;
 import ink.markidea.note.entity.vo.NotebookVo;
 import ink.markidea.note.service.INoteService;
+import ink.markidea.note.util.FileUtil;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiImplicitParam;
 import io.swagger.annotations.ApiImplicitParams;
@@ -14,8 +16,13 @@ import io.swagger.annotations.ApiOperation;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 
-import java.util.ArrayList;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 
 @RestController
@@ -23,6 +30,8 @@ import java.util.List;
 @Api(tags = "笔记相关接口",description = "展示笔记")
 public class NoteController {
 
+    private static final String MARKDOWN_CONTENT_TYPE = "text/markdown;charset=UTF-8";
+
     @Autowired
     private INoteService noteService;
 
@@ -43,6 +52,10 @@ public class NoteController {
         if (StringUtils.isNotBlank(request.getVersionRef())){
             return noteService.resetAndGet(notebookName, noteTitle, request.getVersionRef());
         }
+        //补丁保存 只传修改的部分
+        if (request.getEdits() != null) {
+            return noteService.patchNote(noteTitle, notebookName, request.getBaseHash(), request.getEdits(), request.isTmpSave());
+        }
         //临时保存 暂不推至git仓库
         if (request.isTmpSave()) {
             noteService.tmpSaveNote(noteTitle, notebookName, request.getContent());
@@ -65,14 +78,7 @@ public class NoteController {
     @ApiOperation(value = "获取所有的笔记本和笔记信息",notes = "")
     @GetMapping("")
     public ServerResponse<List<NotebookVo>> getNotebooks(){
-        List<String>  notebookNames = noteService.listNotebooks().getData();
-        List<NotebookVo> notebookVoList = new ArrayList<>(notebookNames.size());
-        for (String notebookName : notebookNames){
-            NotebookVo notebookVo = new NotebookVo().setNotebookName(notebookName).setNoteList(new ArrayList<>());
-            notebookVo.setNoteList(noteService.listNotes(notebookName).getData());
-            notebookVoList.add(notebookVo);
-        }
-        return ServerResponse.buildSuccessResponse(notebookVoList);
+        return noteService.listNotebookTree();
     }
 
     /**
@@ -96,6 +102,34 @@ public class NoteController {
         return noteService.getNote(notebookName, noteTitle);
     }
 
+    /**
+     * 直接输出笔记文件的原始内容 不经过String和JSON转换, 适合较大的笔记
+     * 文件内容经缓冲区分块拷贝到servlet输出流, 不是零拷贝
+     * 响应带有ETag, 客户端以If-None-Match重新验证, 未修改时返回304
+     */
+    @ApiOperation(value = "获取笔记原始内容",notes = "需要传入笔记本名和笔记名 支持If-None-Match")
+    @GetMapping("/{notebookName}/{noteTitle}/raw")
+    public void getRawNote(@PathVariable String notebookName, @PathVariable String noteTitle,
+                           ServletWebRequest webRequest) throws IOException {
+        File noteFile = noteService.getNoteFile(notebookName, noteTitle);
+        String eTag = FileUtil.getFileETag(noteFile);
+        if (eTag == null) {
+            throw new PromptException("笔记不存在");
+        }
+        //未修改时设置304和ETag
+        if (webRequest.checkNotModified(eTag)) {
+            return;
+        }
+        HttpServletResponse response = webRequest.getResponse();
+        //先打开文件 读取期间文件被替换时仍输出打开时的内容
+        try (FileChannel channel = FileChannel.open(noteFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            response.setContentType(MARKDOWN_CONTENT_TYPE);
+            response.setContentLengthLong(size);
+            FileUtil.transfer(channel, size, response.getOutputStream());
+        }
+    }
+
     @ApiOperation(value = "获取笔记历史版本",notes = "需要传入笔记本名和笔记名")
     @GetMapping("/{notebookName}/{noteTitle}/history")
     public ServerResponse<List<NoteVersionVo>> getNoteHistory(@PathVariable String notebookName, @PathVariable String noteTitle){
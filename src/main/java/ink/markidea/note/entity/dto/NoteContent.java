@@ -0,0 +1,224 @@
+package ink.markidea.note.entity.dto;
+
+import ink.markidea.note.context.note.OffHeapNoteStore;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 缓存中的笔记内容
+ * 以UTF-8字节保存, 超过压缩阈值且压缩后更小时以Deflate压缩保存, 读取时解压.
+ * 开启堆外存储时字节写入堆外内存, 对象中只保存句柄; 堆外容量不足时仍保存在堆内.
+ */
+public class NoteContent {
+
+    /** 数组和对象头等固定开销的估计值 哈希按需计算, 不计入 */
+    private static final int OVERHEAD_BYTES = 48;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** 超过多少字节压缩 小于等于0时不压缩 */
+    private static volatile int compressThreshold = 1024;
+
+    /** 为null时不使用堆外存储 */
+    private static volatile OffHeapNoteStore offHeapStore;
+
+    /** 保存在堆内时的内容 */
+    private final byte[] data;
+
+    /** 保存在堆外时的句柄 */
+    private final OffHeapNoteStore.Handle handle;
+
+    private final OffHeapNoteStore store;
+
+    /** 原始内容的字节数 */
+    private final int length;
+
+    private final boolean compressed;
+
+    /** 原始内容的SHA-256 用于校验补丁保存的基础版本, 只有补丁保存用到, 首次获取时计算 */
+    private volatile String hash;
+
+    private NoteContent(byte[] data, OffHeapNoteStore store, OffHeapNoteStore.Handle handle, int length,
+                        boolean compressed) {
+        this.data = data;
+        this.store = store;
+        this.handle = handle;
+        this.length = length;
+        this.compressed = compressed;
+    }
+
+    private static NoteContent create(byte[] bytes, int length, boolean compressed) {
+        OffHeapNoteStore store = offHeapStore;
+        if (store != null) {
+            OffHeapNoteStore.Handle handle = store.store(bytes);
+            if (handle != null) {
+                return new NoteContent(null, store, handle, length, compressed);
+            }
+        }
+        return new NoteContent(bytes, null, null, length, compressed);
+    }
+
+    public static NoteContent of(String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        int threshold = compressThreshold;
+        if (threshold > 0 && bytes.length > threshold) {
+            byte[] deflated = deflate(bytes);
+            if (deflated.length < bytes.length) {
+                return create(deflated, bytes.length, true);
+            }
+        }
+        return create(bytes, bytes.length, false);
+    }
+
+
+    /**
+     * 计算内容的哈希 与 getHash() 相同
+     */
+    public static String hash(String content) {
+        return sha256(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return 堆外内容已被释放(缓存项已移除)时返回null, 调用方应重新从缓存获取
+     */
+    public String getContent() {
+        byte[] bytes = data;
+        if (handle != null) {
+            bytes = store.read(handle);
+            if (bytes == null) {
+                return null;
+            }
+        }
+        return new String(compressed ? inflate(bytes, length) : bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 实际占用的内存 堆外内容按占用的block计算 用于缓存称重
+     */
+    public int getWeight() {
+        if (handle != null) {
+            return handle.getBlockCount() * store.getBlockSize() + OVERHEAD_BYTES;
+        }
+        return data.length + OVERHEAD_BYTES;
+    }
+
+    /**
+     * 缓存项被移除时释放堆外内存
+     */
+    public void release() {
+        if (handle != null) {
+            store.release(handle);
+        }
+    }
+
+    public boolean isOffHeap() {
+        return handle != null;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * 内容的哈希 UTF-8字节的SHA-256 小写十六进制
+     * @return 尚未计算且堆外内容已被释放时返回null
+     */
+    public String getHash() {
+        String value = hash;
+        if (value == null) {
+            String content = getContent();
+            if (content == null) {
+                return null;
+            }
+            value = getHash(content);
+        }
+        return value;
+    }
+
+    /**
+     * 调用方已读出内容时使用 避免再读取一次
+     * @param content 本对象保存的内容
+     */
+    public String getHash(String content) {
+        String value = hash;
+        if (value == null) {
+            value = hash(content);
+            hash = value;
+        }
+        return value;
+    }
+
+    public static void setCompressThreshold(int compressThreshold) {
+        NoteContent.compressThreshold = compressThreshold;
+    }
+
+    public static void setOffHeapStore(OffHeapNoteStore offHeapStore) {
+        NoteContent.offHeapStore = offHeapStore;
+    }
+
+    private static String sha256(byte[] bytes) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] hashBytes = digest.digest(bytes);
+        char[] hex = new char[hashBytes.length * 2];
+        for (int i = 0; i < hashBytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(hashBytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[hashBytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length && !inflater.finished()) {
+                int count = inflater.inflate(bytes, offset, length - offset);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += count;
+            }
+            if (offset != length) {
+                throw new IllegalStateException("Corrupted note content in cache");
+            }
+            return bytes;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted note content in cache", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
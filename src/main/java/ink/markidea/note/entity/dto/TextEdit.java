@@ -0,0 +1,26 @@
+package ink.markidea.note.entity.dto;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+/**
+ * 对笔记内容的一处修改 位置以修改前内容的字符(UTF-16)下标计
+ */
+@Getter
+@Setter
+@Accessors(chain = true)
+@ApiModel(description = "笔记内容修改")
+public class TextEdit {
+
+    @ApiModelProperty(value = "修改开始的位置")
+    private int offset;
+
+    @ApiModelProperty(value = "删除的字符数")
+    private int deleteLength;
+
+    @ApiModelProperty(value = "在该位置插入的内容")
+    private String text;
+}
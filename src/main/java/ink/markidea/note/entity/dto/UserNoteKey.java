@@ -2,28 +2,184 @@ package ink.markidea.note.entity.dto;
 
 import io.swagger.annotations.ApiModel;
 import io.swagger.annotations.ApiModelProperty;
-import lombok.EqualsAndHashCode;
 import lombok.Getter;
-import lombok.Setter;
-import lombok.experimental.Accessors;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * 用户笔记传输信息 用于缓存的信息传输
+ *
+ * 不可变, 哈希值在创建时计算. 通过 of 从规范表获取, 同一篇笔记在被引用期间始终返回同一个对象,
+ * 缓存查找时不再新建key, 比较时通常引用相等即可返回.
+ * 用户名和笔记本名被规范化保存; 笔记级的key只被弱引用, 不再被缓存、草稿或锁持有时即可回收
  */
 @Getter
-@Setter
-@EqualsAndHashCode
-@Accessors(chain = true)
 @ApiModel(description = "笔记keyDTO")
-public class UserNoteKey {
+public final class UserNoteKey {
+
+    /** 用户名 -> 笔记本名 -> 笔记本下的key表 */
+    private static final ConcurrentMap<String, ConcurrentMap<String, NotebookKeys>> KEY_TABLE
+            = new ConcurrentHashMap<>();
+
+    /**
+     * 按笔记加锁用的分段锁 按值的哈希选取, forget 之后重新创建的key与旧key仍使用同一把锁
+     * 个数为2的幂
+     */
+    private static final Object[] LOCK_STRIPES = new Object[256];
+
+    static {
+        for (int i = 0; i < LOCK_STRIPES.length; i++) {
+            LOCK_STRIPES[i] = new Object();
+        }
+    }
+
+    /** 已被回收的key 在下次 of 时从规范表中清除 */
+    private static final ReferenceQueue<UserNoteKey> COLLECTED = new ReferenceQueue<>();
 
     @ApiModelProperty(notes = "文章所属用户名")
-    private String username;
+    private final String username;
 
     @ApiModelProperty(notes = "文章所属笔记本")
-    private String notebookName;
+    private final String notebookName;
 
     @ApiModelProperty(notes = "文章标题")
-    private String noteTitle;
+    private final String noteTitle;
+
+    private final int hash;
+
+    private UserNoteKey(String username, String notebookName, String noteTitle) {
+        this.username = username;
+        this.notebookName = notebookName;
+        this.noteTitle = noteTitle;
+        this.hash = Objects.hash(username, notebookName, noteTitle);
+    }
+
+    public static UserNoteKey of(String username, String notebookName, String noteTitle) {
+        if (username == null || notebookName == null || noteTitle == null) {
+            return new UserNoteKey(username, notebookName, noteTitle);
+        }
+        expungeCollected();
+        ConcurrentMap<String, NotebookKeys> notebookTable = KEY_TABLE.get(username);
+        if (notebookTable == null) {
+            notebookTable = KEY_TABLE.computeIfAbsent(username, k -> new ConcurrentHashMap<>());
+        }
+        NotebookKeys notebookKeys = notebookTable.get(notebookName);
+        if (notebookKeys == null) {
+            notebookKeys = notebookTable.computeIfAbsent(notebookName, k -> new NotebookKeys(username, notebookName));
+        }
+        return notebookKeys.get(noteTitle);
+    }
+
+    /**
+     * 笔记已删除或移走 从规范表中移除
+     * 仍被持有的旧key按值比较 不影响缓存
+     */
+    public static void forget(String username, String notebookName, String noteTitle) {
+        ConcurrentMap<String, NotebookKeys> notebookTable = KEY_TABLE.get(username);
+        if (notebookTable == null) {
+            return;
+        }
+        NotebookKeys notebookKeys = notebookTable.get(notebookName);
+        if (notebookKeys != null) {
+            notebookKeys.keys.remove(noteTitle);
+        }
+    }
+
+    /**
+     * 笔记本已删除或重命名
+     */
+    public static void forgetNotebook(String username, String notebookName) {
+        ConcurrentMap<String, NotebookKeys> notebookTable = KEY_TABLE.get(username);
+        if (notebookTable != null) {
+            notebookTable.remove(notebookName);
+        }
+    }
+
+    /**
+     * 获取这篇笔记的锁 不要直接对key加锁, 规范表只弱引用key, forget 后同一篇笔记可能对应多个key对象
+     * 不同笔记可能共用一把锁, 持有时不要等待其他笔记的锁
+     */
+    public Object lock() {
+        return LOCK_STRIPES[(hash ^ (hash >>> 16)) & (LOCK_STRIPES.length - 1)];
+    }
+
+    private static void expungeCollected() {
+        Reference<? extends UserNoteKey> ref;
+        while ((ref = COLLECTED.poll()) != null) {
+            KeyRef keyRef = (KeyRef) ref;
+            keyRef.owner.keys.remove(keyRef.noteTitle, keyRef);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof UserNoteKey)) {
+            return false;
+        }
+        UserNoteKey other = (UserNoteKey) o;
+        return hash == other.hash
+                && Objects.equals(noteTitle, other.noteTitle)
+                && Objects.equals(notebookName, other.notebookName)
+                && Objects.equals(username, other.username);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return username + "/" + notebookName + "/" + noteTitle;
+    }
+
+    /**
+     * 一个笔记本下的key 用户名和笔记本名在此规范化
+     */
+    private static final class NotebookKeys {
+
+        private final String username;
+
+        private final String notebookName;
+
+        private final ConcurrentMap<String, KeyRef> keys = new ConcurrentHashMap<>();
+
+        private NotebookKeys(String username, String notebookName) {
+            this.username = username;
+            this.notebookName = notebookName;
+        }
+
+        private UserNoteKey get(String noteTitle) {
+            KeyRef ref = keys.get(noteTitle);
+            UserNoteKey key = ref == null ? null : ref.get();
+            while (key == null) {
+                UserNoteKey created = new UserNoteKey(username, notebookName, noteTitle);
+                KeyRef existing = keys.compute(noteTitle, (k, old) ->
+                        old != null && old.get() != null ? old : new KeyRef(created, this));
+                key = existing.get();
+            }
+            return key;
+        }
+    }
+
+    private static final class KeyRef extends WeakReference<UserNoteKey> {
+
+        private final NotebookKeys owner;
+
+        private final String noteTitle;
 
+        private KeyRef(UserNoteKey key, NotebookKeys owner) {
+            super(key, COLLECTED);
+            this.owner = owner;
+            this.noteTitle = key.noteTitle;
+        }
+    }
 }
@@ -1,11 +1,14 @@
 package ink.markidea.note.entity.req;
 
+import ink.markidea.note.entity.dto.TextEdit;
 import io.swagger.annotations.ApiModel;
 import io.swagger.annotations.ApiModelProperty;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.Accessors;
 
+import java.util.List;
+
 @Getter
 @Setter
 @Accessors(chain = true)
@@ -36,4 +39,10 @@ public class NoteRequest {
     @ApiModelProperty(value = "临时保存草稿 被记录版本控制")
     private boolean tmpSave = false;
 
+    @ApiModelProperty(value = "补丁保存 修改前内容的哈希(UTF-8字节的SHA-256)")
+    private String baseHash;
+
+    @ApiModelProperty(value = "补丁保存 按位置排列的修改 不为空时忽略content")
+    private List<TextEdit> edits;
+
 }
@@ -0,0 +1,24 @@
+package ink.markidea.note.entity.req;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+@ApiModel(description = "比较笔记的两个版本")
+public class QueryHistoryDiffReq {
+
+    @ApiModelProperty(value = "笔记本")
+    private String notebookName;
+
+    @ApiModelProperty(value = "标题")
+    private String noteTitle;
+
+    @ApiModelProperty(value = "旧版本")
+    private String oldRef;
+
+    @ApiModelProperty(value = "新版本 为空时与当前内容比较")
+    private String newRef;
+}
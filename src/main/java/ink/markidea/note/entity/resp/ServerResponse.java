@@ -66,7 +66,10 @@ public class ServerResponse<T> {
         ERROR(1),
 
         // 需要登录
-        NEED_LOGIN(2);
+        NEED_LOGIN(2),
+
+        // 补丁保存时笔记已被修改 需重新获取或整篇保存
+        NOTE_CONFLICT(3);
 
         private int code;
 
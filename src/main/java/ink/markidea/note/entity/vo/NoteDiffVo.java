@@ -0,0 +1,74 @@
+package ink.markidea.note.entity.vo;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+import java.util.List;
+
+/**
+ * 笔记两个版本的差异
+ * 只包含改动的行及其上下文, 相同的部分不返回
+ */
+@Getter
+@Setter
+@Accessors(chain = true)
+public class NoteDiffVo {
+
+    /** 旧版本总行数 */
+    private int oldLineCount;
+
+    /** 新版本总行数 */
+    private int newLineCount;
+
+    private List<Hunk> hunks;
+
+    /**
+     * 一段连续的改动
+     */
+    @Getter
+    @Setter
+    @Accessors(chain = true)
+    public static class Hunk {
+
+        /** 在旧版本中的起始行 从0开始 */
+        private int oldStart;
+
+        /** 在新版本中的起始行 从0开始 */
+        private int newStart;
+
+        private List<Line> lines;
+    }
+
+    @Getter
+    @Setter
+    @Accessors(chain = true)
+    public static class Line {
+
+        public static final int TYPE_EQUAL = 0;
+
+        public static final int TYPE_DELETE = 1;
+
+        public static final int TYPE_INSERT = 2;
+
+        private int type;
+
+        private String content;
+
+        /**
+         * 行内的词级差异 只有一一对应修改的行才有
+         */
+        private List<Segment> segments;
+    }
+
+    @Getter
+    @Setter
+    @Accessors(chain = true)
+    public static class Segment {
+
+        /** 同 Line 的类型 */
+        private int type;
+
+        private String text;
+    }
+}
@@ -0,0 +1,34 @@
+package ink.markidea.note.entity.vo;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+/**
+ * 推送至远程仓库的状态
+ */
+@Getter
+@Setter
+@Accessors(chain = true)
+public class PushStatusVo {
+
+    /** 最近一次推送是否成功 尚未推送时为null */
+    private Boolean success;
+
+    /** 是否正在推送 */
+    private boolean pushing;
+
+    /** 最近一次推送完成时间 */
+    private String lastPushTime;
+
+    /** 最近一次推送耗时 毫秒 */
+    private Long lastLatencyMillis;
+
+    /** 连续失败次数 */
+    private int consecutiveFailures;
+
+    /** 失败后下次重试时间 */
+    private String nextRetryTime;
+
+    private String lastError;
+}
@@ -10,6 +10,17 @@ public interface IArticleService {
 
      ArticleDo findByNotebookAndNoteTitle(String notebookName, String noteTitle);
 
+     /**
+      * 查询笔记对应的文章id 读取内存中的用户文章表
+      * @return 笔记未发布时返回null
+      */
+     Integer findArticleId(String username, String notebookName, String noteTitle);
+
+     /**
+      * 载入用户的文章表 用于缓存预热
+      */
+     void preloadArticleIds(String username);
+
      ArticleVo findByArticleIdAndUsername(Integer articleId, String username);
 
      Page<ArticleVo> listArticles(Integer page, Integer size);
@@ -25,6 +25,10 @@ public interface IFileService {
      */
     File createTmpEmptyDir();
 
+    /**
+     * 以UTF-8原子写入文件 写入失败时目标文件保持原内容
+     * @return 是否写入成功
+     */
     boolean writeStringToFile(String content, File targetFile);
 
     String getContentFromFile(File file);
@@ -0,0 +1,24 @@
+package ink.markidea.note.service;
+
+import ink.markidea.note.entity.vo.NoteVersionVo;
+
+import java.util.List;
+
+/**
+ * 笔记历史版本
+ * 由持久化的历史索引查询, 只与该笔记的版本数有关, 不再遍历整个仓库的提交
+ */
+public interface INoteHistoryService {
+
+    /**
+     * 获取笔记的历史版本 从新到旧
+     * @param fileName 相对用户仓库的路径
+     */
+    List<NoteVersionVo> getNoteHistory(String username, String fileName);
+
+    /**
+     * 获取笔记的当前版本
+     * @return 没有历史版本时返回null
+     */
+    String getFileCurRef(String username, String fileName);
+}
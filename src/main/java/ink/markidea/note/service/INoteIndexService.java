@@ -0,0 +1,52 @@
+package ink.markidea.note.service;
+
+import ink.markidea.note.context.index.SearchHit;
+
+import java.util.List;
+
+/**
+ * 笔记全文索引
+ * 由笔记的增删改操作增量维护, 搜索直接查询倒排表而不再读取笔记内容
+ */
+public interface INoteIndexService {
+
+    /**
+     * 新增或更新一篇笔记的索引
+     */
+    void indexNote(String username, String notebookName, String noteTitle, String content);
+
+    /**
+     * 按磁盘上的笔记文件重新索引一篇笔记 文件不存在时删除其索引, 内容与已索引的相同时不重新分词
+     * 用于绕过服务修改笔记文件的情况
+     */
+    void reindexNote(String username, String notebookName, String noteTitle);
+
+    /**
+     * 按磁盘上的文件重新索引一个笔记本 内容未变的笔记不重新分词, 文件已不存在的笔记删除索引
+     * 用于笔记本目录整体增删或改名
+     */
+    void reindexNotebook(String username, String notebookName);
+
+    /**
+     * 扫描笔记目录重建用户的索引 用于拉取远程仓库等批量修改之后
+     * 在后台进行, 完成前查询仍使用原有索引
+     */
+    void rebuildIndex(String username);
+
+    /**
+     * 删除一篇笔记的索引
+     */
+    void removeNote(String username, String notebookName, String noteTitle);
+
+    /**
+     * 笔记本重命名 索引中的笔记随之迁移
+     */
+    void renameNotebook(String username, String srcNotebookName, String targetNotebookName);
+
+    /**
+     * 搜索笔记
+     * @param searchNotebooks 搜索范围 为空时搜索全部笔记本
+     * @return 按相关度排序的结果
+     */
+    List<SearchHit> search(String username, String keyWord, List<String> searchNotebooks);
+}
@@ -1,10 +1,12 @@
 package ink.markidea.note.service;
 
-
+import ink.markidea.note.entity.dto.TextEdit;
 import ink.markidea.note.entity.resp.ServerResponse;
 import ink.markidea.note.entity.vo.DeletedNoteVo;
+import ink.markidea.note.entity.vo.NoteDiffVo;
 import ink.markidea.note.entity.vo.NoteVersionVo;
 import ink.markidea.note.entity.vo.NoteVo;
+import ink.markidea.note.entity.vo.NotebookVo;
 
 import java.io.File;
 import java.util.List;
@@ -21,6 +23,18 @@ public interface INoteService {
      */
     ServerResponse<List<NoteVo>> listNotes(String notebookName);
 
+    /**
+     * list all notebooks with their notes
+     */
+    ServerResponse<List<NotebookVo>> listNotebookTree();
+
+    /**
+     * warm up caches of current user: article ids, previews of recently modified notes
+     * @param maxNotes max number of note previews to load
+     * @param budgetMillis time limit of loading previews
+     */
+    void warmUp(int maxNotes, long budgetMillis);
+
 
     ServerResponse<List<NoteVo>> search(String keyWord, List<String> searchNotebooks);
 
@@ -40,6 +54,14 @@ public interface INoteService {
      */
     void tmpSaveNote(String noteTitle, String notebookName, String content);
 
+    /**
+     * save note by applying edits to the cached content,
+     * rejected with NOTE_CONFLICT when baseHash does not match the current content
+     * @return hash of the new content
+     */
+    ServerResponse<String> patchNote(String noteTitle, String notebookName, String baseHash,
+                                     List<TextEdit> edits, boolean tmpSave);
+
     void delTmpSavedNote(String noteTitle, String notebookName);
 
     /**
@@ -67,6 +89,11 @@ public interface INoteService {
      */
     ServerResponse<String> getNoteHistoryContent(String notebookName, String noteTitle, String versionRef);
 
+    /**
+     * diff two versions of note, compare with current content when newRef is blank
+     */
+    ServerResponse<NoteDiffVo> getNoteHistoryDiff(String notebookName, String noteTitle, String oldRef, String newRef);
+
     /**
      * recover note to a certain version
      */
@@ -117,6 +144,11 @@ public interface INoteService {
      */
     ServerResponse copyNote(String srcNotebook, String targetNotebook, String title);
 
+    /**
+     * 获取笔记文件 不经过缓存 笔记不存在时抛出PromptException
+     */
+    File getNoteFile(String notebookName, String noteTitle);
+
     /**
      * 获取用户文件夹目录
      */
@@ -2,17 +2,23 @@ package ink.markidea.note.service.impl;
 
 import ink.markidea.note.constant.RegisterConstant;
 import ink.markidea.note.context.config.CacheConfig;
+import ink.markidea.note.context.git.DirtyNoteTracker;
+import ink.markidea.note.context.git.GitRepositoryPool;
+import ink.markidea.note.context.git.GroupCommitter;
+import ink.markidea.note.context.note.DraftBuffer;
+import ink.markidea.note.context.note.NotebookTreeCache;
 import ink.markidea.note.context.task.NoteTimer;
 import ink.markidea.note.dao.UserRepository;
 import ink.markidea.note.entity.dto.WebsiteConfigDto;
 import ink.markidea.note.entity.exception.PromptException;
 import ink.markidea.note.entity.req.WebsiteConfigReq;
 import ink.markidea.note.entity.resp.ServerResponse;
+import ink.markidea.note.entity.vo.PushStatusVo;
 import ink.markidea.note.service.IAdminService;
+import ink.markidea.note.service.INoteIndexService;
 import ink.markidea.note.service.IUserService;
 import ink.markidea.note.util.*;
 import lombok.extern.slf4j.Slf4j;
-import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -24,9 +30,6 @@ import java.io.File;
 @Slf4j
 public class AdminServiceImpl implements IAdminService {
 
-    @Value("${notesDir}")
-    private String notesDir;
-
     @Value(("${frontDir}"))
     private String frontDir;
 
@@ -36,6 +39,9 @@ public class AdminServiceImpl implements IAdminService {
     @Autowired
     private NoteTimer noteTimer;
 
+    @Autowired
+    private INoteIndexService noteIndexService;
+
     @Value("${sshKeysDir}")
     private String sshKeysDir;
 
@@ -48,6 +54,21 @@ public class AdminServiceImpl implements IAdminService {
     @Autowired
     private IUserService userService;
 
+    @Autowired
+    private GitRepositoryPool gitRepositoryPool;
+
+    @Autowired
+    private GroupCommitter groupCommitter;
+
+    @Autowired
+    private DirtyNoteTracker dirtyNoteTracker;
+
+    @Autowired
+    private NotebookTreeCache notebookTreeCache;
+
+    @Autowired
+    private DraftBuffer draftBuffer;
+
     @Override
     public ServerResponse setRemoteRepoUrl(String remoteRepoUrl) {
         userRepository.save(userRepository.findByUsername(getUsername()).setRemoteRepository(remoteRepoUrl));
@@ -75,11 +96,16 @@ public class AdminServiceImpl implements IAdminService {
 
     @Override
     public ServerResponse checkPushTaskStatus(){
-        Boolean result = noteTimer.checkPushTaskStatus(getUsername());
-        if (result != null && !result){
-            return ServerResponse.buildErrorResponse("Can't push to remote repo");
+        PushStatusVo statusVo = noteTimer.checkPushTaskStatus(getUsername());
+        if (statusVo == null) {
+            return ServerResponse.buildSuccessResponse();
         }
-        return ServerResponse.buildSuccessResponse();
+        if (Boolean.FALSE.equals(statusVo.getSuccess())){
+            ServerResponse<PushStatusVo> response = ServerResponse.buildErrorResponse("Can't push to remote repo");
+            response.setData(statusVo);
+            return response;
+        }
+        return ServerResponse.buildSuccessResponse(statusVo);
     }
 
     @Override
@@ -97,25 +123,27 @@ public class AdminServiceImpl implements IAdminService {
 
     @Override
     public ServerResponse pullFromRemote() {
-        Git git = getOrCreateUserGit();
-        try {
+        //拉取前写入草稿 否则拉取不会因本地改动冲突, 之后写入的草稿会覆盖拉取的内容
+        draftBuffer.flushUser(getUsername());
+        if (!draftBuffer.getPendingFiles(getUsername()).isEmpty()) {
+            throw new PromptException("草稿写入失败 请稍后再拉取");
+        }
+        //拉取前提交尚未提交的保存
+        groupCommitter.flush(getUsername());
+        try (GitRepositoryPool.GitHandle handle = gitRepositoryPool.borrow(getUsername())) {
             String prvKeyPath = new File(sshKeysDir, getUsername() + ".prv").getAbsolutePath();
-            GitUtil.pullFromRemote(git, prvKeyPath);
+            GitUtil.pullFromRemote(handle.git(), prvKeyPath);
         } catch (GitAPIException e) {
             throw new PromptException("拉取远程仓库失败");
+        } finally {
+            dirtyNoteTracker.invalidate(getUsername());
+            notebookTreeCache.invalidate(getUsername());
         }
+        //拉取的改动不经过保存操作 重建搜索索引
+        noteIndexService.rebuildIndex(getUsername());
         return ServerResponse.buildSuccessResponse();
     }
 
-    private File getOrCreateUserNotebookDir(){
-        File dir = new File(notesDir, getUsername());
-        if (dir.exists()){
-            return dir;
-        }
-        dir.mkdir();
-        return dir;
-    }
-
     @Override
     public synchronized boolean updateWebSiteConfig(WebsiteConfigReq req) {
         WebsiteConfigDto originWebsiteConfig = getWebsiteConfig();
@@ -176,10 +204,6 @@ public class AdminServiceImpl implements IAdminService {
         return JsonUtil.stringToObj(configStr, WebsiteConfigDto.class);
     }
 
-    private Git getOrCreateUserGit(){
-        return GitUtil.getOrInitGit(getOrCreateUserNotebookDir());
-    }
-
     private String getUsername(){
         return ThreadLocalUtil.getUsername();
     }
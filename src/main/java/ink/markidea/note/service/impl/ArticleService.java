@@ -1,8 +1,11 @@
 package ink.markidea.note.service.impl;
 
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
 import com.github.benmanes.caffeine.cache.LoadingCache;
+import ink.markidea.note.context.note.NotebookTreeCache;
 import ink.markidea.note.dao.ArticleRepository;
 import ink.markidea.note.entity.ArticleDo;
+import ink.markidea.note.entity.dto.NoteContent;
 import ink.markidea.note.entity.dto.NotePreviewInfo;
 import ink.markidea.note.entity.dto.UserNoteKey;
 import ink.markidea.note.entity.vo.ArticleVo;
@@ -17,8 +20,13 @@ import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.CollectionUtils;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 
@@ -27,20 +35,39 @@ public class ArticleService implements IArticleService {
 
     @Autowired
     @Qualifier("userNoteCache")
-    LoadingCache<UserNoteKey, String> userNoteCache;
+    LoadingCache<UserNoteKey, NoteContent> userNoteCache;
 
     @Autowired
     @Qualifier("userNotePreviewCache")
-    LoadingCache<UserNoteKey, NotePreviewInfo> userNotePreviewCache;
+    AsyncLoadingCache<UserNoteKey, NotePreviewInfo> userNotePreviewCache;
 
     @Autowired
     ArticleRepository articleRepository;
 
+    @Autowired
+    NotebookTreeCache notebookTreeCache;
+
+    /**
+     * 用户名 -> (笔记本名/笔记标题 -> 文章id)
+     * 用户首次访问时一次查询载入, 之后由发布, 移动, 删除等操作直接更新
+     */
+    private final ConcurrentMap<String, Map<String, Integer>> articleIdMap = new ConcurrentHashMap<>();
+
     @Override
     public ArticleDo findByNotebookAndNoteTitle(String notebookName, String noteTitle) {
         return articleRepository.findFirstByNotebookNameAndNoteTitleAndUsername(notebookName, noteTitle, getUsername());
     }
 
+    @Override
+    public Integer findArticleId(String username, String notebookName, String noteTitle) {
+        return getArticleIds(username).get(articleKey(notebookName, noteTitle));
+    }
+
+    @Override
+    public void preloadArticleIds(String username) {
+        getArticleIds(username);
+    }
+
     @Override
     public ArticleVo findByArticleIdAndUsername(Integer articleId, String username) {
         return convert(articleRepository.findByIdAndUsername(articleId, username));
@@ -64,7 +91,7 @@ public class ArticleService implements IArticleService {
      */
     @Override
     public ArticleVo findOrCreateArticle(String notebookName, String noteTitle) {
-        NotePreviewInfo notePreviewInfo = userNotePreviewCache.get(buildUserNoteKey(notebookName, noteTitle, getUsername()));
+        NotePreviewInfo notePreviewInfo = userNotePreviewCache.get(buildUserNoteKey(notebookName, noteTitle, getUsername())).join();
         if (notePreviewInfo.getArticleId() != null) {
             return new ArticleVo().setArticleId(notePreviewInfo.getArticleId());
         }
@@ -73,6 +100,7 @@ public class ArticleService implements IArticleService {
                 .setNoteTitle(noteTitle)
                 .setUsername(getUsername());
         articleRepository.save(articleDo);
+        updateArticleIds(getUsername(), ids -> ids.put(articleKey(notebookName, noteTitle), articleDo.getId()));
         //对原有文章信息更改之后需要使缓存失效 重新载入缓存
         invalidateCache(buildUserNoteKey(notebookName, noteTitle));
         return convert(articleDo);
@@ -87,32 +115,82 @@ public class ArticleService implements IArticleService {
         if (articleDo == null) {
             return ;
         }
+        String srcKey = articleKey(articleDo.getNotebookName(), articleDo.getNoteTitle());
         ///重新设置文章实体信息并保存
         articleDo.setNotebookName(targetNotebook).setNoteTitle(targetNoteTitle);
         articleRepository.save(articleDo);
+        updateArticleIds(getUsername(), ids -> {
+            ids.remove(srcKey, articleId);
+            ids.put(articleKey(targetNotebook, targetNoteTitle), articleId);
+        });
     }
 
     @Override
     public void deleteArticle(Integer articleId) {
         articleRepository.deleteByIdAndUsername(articleId, getUsername());
+        updateArticleIds(getUsername(), ids -> ids.values().remove(articleId));
     }
 
     @Override
     public void batchDeleteArticle(List<ArticleVo> articleList) {
-        articleList.forEach(articleVo ->
-                userNotePreviewCache.invalidate(buildUserNoteKey(articleVo.getNotebookName(), articleVo.getNoteTitle())));
-        articleRepository.deleteAllByUsernameAndIdIn(getUsername(),
-                articleList.stream().map(ArticleVo::getArticleId).collect(Collectors.toList()));
+        articleList.forEach(articleVo -> {
+            userNotePreviewCache.synchronous().invalidate(buildUserNoteKey(articleVo.getNotebookName(), articleVo.getNoteTitle()));
+            notebookTreeCache.invalidateNote(getUsername(), articleVo.getNotebookName(), articleVo.getNoteTitle());
+        });
+        List<Integer> articleIds = articleList.stream().map(ArticleVo::getArticleId).collect(Collectors.toList());
+        articleRepository.deleteAllByUsernameAndIdIn(getUsername(), articleIds);
+        updateArticleIds(getUsername(), ids -> ids.values().removeAll(articleIds));
     }
 
     @Override
     public void batchDeleteArticlesByNotebookName(String notebookName) {
         articleRepository.deleteAllByUsernameAndNotebookName(getUsername(), notebookName);
+        String prefix = notebookName + "/";
+        updateArticleIds(getUsername(), ids -> ids.keySet().removeIf(key -> key.startsWith(prefix)));
     }
 
     @Override
     public void updateArticlesNotebookName(String srcNotebook, String targetNotebook) {
         articleRepository.updateNotebookName(getUsername(), srcNotebook, targetNotebook);
+        String prefix = srcNotebook + "/";
+        updateArticleIds(getUsername(), ids -> {
+            Map<String, Integer> moved = new HashMap<>();
+            ids.entrySet().removeIf(entry -> {
+                if (!entry.getKey().startsWith(prefix)) {
+                    return false;
+                }
+                moved.put(targetNotebook + "/" + entry.getKey().substring(prefix.length()), entry.getValue());
+                return true;
+            });
+            ids.putAll(moved);
+        });
+    }
+
+    /**
+     * 获取用户的文章表 首次访问时一次查询该用户的所有文章
+     */
+    private Map<String, Integer> getArticleIds(String username) {
+        return articleIdMap.computeIfAbsent(username, k -> {
+            Map<String, Integer> ids = new ConcurrentHashMap<>();
+            articleRepository.findAllByUsername(k)
+                    .forEach(articleDo -> ids.putIfAbsent(articleKey(articleDo.getNotebookName(), articleDo.getNoteTitle()), articleDo.getId()));
+            return ids;
+        });
+    }
+
+    /**
+     * 更新已载入的文章表 未载入时不需要更新, 下次访问时从数据库载入
+     * 与载入互斥 不会丢失载入期间的更新
+     */
+    private void updateArticleIds(String username, Consumer<Map<String, Integer>> updater) {
+        articleIdMap.computeIfPresent(username, (k, ids) -> {
+            updater.accept(ids);
+            return ids;
+        });
+    }
+
+    private static String articleKey(String notebookName, String noteTitle) {
+        return notebookName + "/" + noteTitle;
     }
 
     private String getUsername(){
@@ -125,12 +203,13 @@ public class ArticleService implements IArticleService {
 
 
     private UserNoteKey buildUserNoteKey(String notebookName, String noteTitle, String username){
-        return new UserNoteKey().setNotebookName(notebookName).setNoteTitle(noteTitle).setUsername(username);
+        return UserNoteKey.of(username, notebookName, noteTitle);
     }
 
     void invalidateCache(UserNoteKey key){
-        userNotePreviewCache.invalidate(key);
+        userNotePreviewCache.synchronous().invalidate(key);
         userNoteCache.invalidate(key);
+        notebookTreeCache.invalidateNote(key.getUsername(), key.getNotebookName(), key.getNoteTitle());
     }
 
     ArticleVo convert(ArticleDo articleDo) {
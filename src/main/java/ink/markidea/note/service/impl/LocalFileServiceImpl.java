@@ -1,19 +1,25 @@
 package ink.markidea.note.service.impl;
 
+import ink.markidea.note.constant.WriteDurability;
 import ink.markidea.note.entity.exception.PromptException;
 import ink.markidea.note.entity.vo.UserFileVo;
 import ink.markidea.note.service.IFileService;
 import ink.markidea.note.util.DateTimeUtil;
 import ink.markidea.note.util.FileUtil;
 import ink.markidea.note.util.ThreadLocalUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.PostConstruct;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 @Service
 @Slf4j
@@ -24,6 +30,33 @@ public class LocalFileServiceImpl implements IFileService {
 
     private final String DIR_PREFIX = "/file/";
 
+    /**
+     * 笔记写入的持久化级别 none / fsync-file / fsync-dir
+     */
+    @Value("${noteWrite.durability:fsync-file}")
+    private String durabilityConfig;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private WriteDurability durability;
+
+    /**
+     * 写入耗时 按持久化级别打标签 用于比较各级别的延迟开销
+     */
+    private Timer writeTimer;
+
+    @PostConstruct
+    private void init() {
+        durability = WriteDurability.of(durabilityConfig);
+        writeTimer = Timer.builder("note.write")
+                .description("atomic note write latency")
+                .tag("durability", durability.name().toLowerCase())
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        log.info("note write durability: {}", durability);
+    }
+
     //上传文件 返回文件名
     @Override
     public String upload(MultipartFile sourceFile) {
@@ -60,7 +93,10 @@ public class LocalFileServiceImpl implements IFileService {
 
     @Override
     public boolean writeStringToFile(String content, File targetFile){
-        return FileUtil.writeStringToFile(content, targetFile);
+        long start = System.nanoTime();
+        boolean success = FileUtil.writeStringToFileAtomically(content, targetFile, durability);
+        writeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return success;
     }
 
     @Override
@@ -0,0 +1,54 @@
+package ink.markidea.note.service.impl;
+
+import ink.markidea.note.context.git.GitRepositoryPool;
+import ink.markidea.note.context.git.GroupCommitter;
+import ink.markidea.note.context.git.UserNoteHistory;
+import ink.markidea.note.entity.vo.NoteVersionVo;
+import ink.markidea.note.service.INoteHistoryService;
+import ink.markidea.note.util.GitUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+@Service
+public class NoteHistoryServiceImpl implements INoteHistoryService {
+
+    @Value("${indexDir}")
+    private String indexDir;
+
+    @Autowired
+    private GitRepositoryPool gitRepositoryPool;
+
+    @Autowired
+    private GroupCommitter groupCommitter;
+
+    private static final String HISTORY_FILE_SUFFIX = ".history";
+
+    private final ConcurrentMap<String, UserNoteHistory> userHistoryMap = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        //仓库关闭时一并释放内存中的历史索引 下次访问时从磁盘加载
+        gitRepositoryPool.addEvictListener(userHistoryMap::remove);
+    }
+
+    @Override
+    public List<NoteVersionVo> getNoteHistory(String username, String fileName) {
+        groupCommitter.flush(username);
+        UserNoteHistory history = userHistoryMap.computeIfAbsent(username,
+                name -> new UserNoteHistory(new File(indexDir, name + HISTORY_FILE_SUFFIX)));
+        return gitRepositoryPool.execute(username,
+                git -> GitUtil.buildNoteHistory(history.getCommits(git, fileName), fileName));
+    }
+
+    @Override
+    public String getFileCurRef(String username, String fileName) {
+        return GitUtil.getFileCurRef(getNoteHistory(username, fileName));
+    }
+}
@@ -0,0 +1,367 @@
+package ink.markidea.note.service.impl;
+
+import ink.markidea.note.context.index.NoteTokenizer;
+import ink.markidea.note.context.index.SearchHit;
+import ink.markidea.note.context.index.UserNoteIndex;
+import ink.markidea.note.service.INoteIndexService;
+import ink.markidea.note.util.FileUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.CollectionUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 笔记全文索引
+ *
+ * 首次加载和重建在后台线程中进行, 重建时写入新的索引对象, 完成后整体替换, 查询不会读到重建到一半的索引.
+ * 加载或重建期间的修改先记录下来, 完成后按顺序应用到新索引上, 修改请求不需要等待.
+ * 索引的每次修改都已写入磁盘, 空闲超过 idleSeconds 的用户索引从内存中移除, 下次访问时重新加载.
+ */
+@Service
+@Slf4j
+public class NoteIndexServiceImpl implements INoteIndexService {
+
+    @Value("${notesDir}")
+    private String notesDir;
+
+    @Value("${indexDir}")
+    private String indexDir;
+
+    private static final String INDEX_FILE_SUFFIX = ".idx";
+
+    private static final String NOTE_EXTENSION = ".md";
+
+    /**
+     * 索引空闲多久后从内存中移除 单位秒
+     */
+    @Value("${noteIndex.idleSeconds:600}")
+    private long idleSeconds;
+
+    private final ConcurrentMap<String, IndexHolder> holderMap = new ConcurrentHashMap<>();
+
+    private ExecutorService loadExecutor;
+
+    @PostConstruct
+    private void init() {
+        loadExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "note-index-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    private void destroy() {
+        loadExecutor.shutdownNow();
+    }
+
+    @Override
+    public void indexNote(String username, String notebookName, String noteTitle, String content) {
+        if (content == null) {
+            return;
+        }
+        int contentHash = content.hashCode();
+        UserNoteIndex current = getHolder(username).index;
+        if (current != null && current.isIndexed(notebookName, noteTitle, contentHash)) {
+            return;
+        }
+        List<NoteTokenizer.Token> titleTokens = NoteTokenizer.tokenize(noteTitle);
+        List<NoteTokenizer.Token> contentTokens = NoteTokenizer.tokenize(content);
+        update(username, index -> index.putDocument(notebookName, noteTitle, contentHash, titleTokens, contentTokens));
+    }
+
+    @Override
+    public void reindexNote(String username, String notebookName, String noteTitle) {
+        update(username, index -> reindexFromFile(username, index, notebookName, noteTitle));
+    }
+
+    @Override
+    public void reindexNotebook(String username, String notebookName) {
+        update(username, index -> {
+            Set<String> staleTitles = index.getNoteTitles(notebookName);
+            File[] noteFiles = new File(new File(notesDir, username), notebookName).listFiles();
+            if (noteFiles != null) {
+                for (File noteFile : noteFiles) {
+                    String fileName = noteFile.getName();
+                    if (!noteFile.isFile() || !fileName.endsWith(NOTE_EXTENSION)) {
+                        continue;
+                    }
+                    String noteTitle = fileName.substring(0, fileName.length() - NOTE_EXTENSION.length());
+                    staleTitles.remove(noteTitle);
+                    reindexFromFile(username, index, notebookName, noteTitle);
+                }
+            }
+            staleTitles.forEach(noteTitle -> index.removeDocument(notebookName, noteTitle));
+        });
+    }
+
+    @Override
+    public void rebuildIndex(String username) {
+        while (true) {
+            IndexHolder holder = getHolder(username);
+            synchronized (holder) {
+                if (holder.evicted) {
+                    continue;
+                }
+                if (holder.pendingOps != null) {
+                    //已有加载或重建在进行 完成后再重建一次
+                    holder.rebuildRequested = true;
+                    return;
+                }
+                holder.pendingOps = new ArrayList<>();
+            }
+            loadExecutor.execute(() -> load(username, holder, true));
+            return;
+        }
+    }
+
+    @Override
+    public void removeNote(String username, String notebookName, String noteTitle) {
+        update(username, index -> index.removeDocument(notebookName, noteTitle));
+    }
+
+    @Override
+    public void renameNotebook(String username, String srcNotebookName, String targetNotebookName) {
+        update(username, index -> index.renameNotebook(srcNotebookName, targetNotebookName));
+    }
+
+    @Override
+    public List<SearchHit> search(String username, String keyWord, List<String> searchNotebooks) {
+        if (StringUtils.isBlank(keyWord)) {
+            return Collections.emptyList();
+        }
+        Set<String> notebookScope = CollectionUtils.isEmpty(searchNotebooks) ? null : new HashSet<>(searchNotebooks);
+        List<NoteTokenizer.Token> queryTokens = NoteTokenizer.tokenizeQuery(keyWord);
+        if (queryTokens.isEmpty()) {
+            //只有标点符号等不入索引的字符 按原方式逐篇查找子串
+            return scanNotes(username, keyWord, notebookScope);
+        }
+        IndexHolder holder = getHolder(username);
+        //首次加载尚未完成时等待 重建期间查询旧索引
+        holder.ready.join();
+        return holder.index.search(queryTokens, notebookScope);
+    }
+
+    /**
+     * 逐篇读取笔记查找关键字 命中次数为标题和正文中关键字出现的次数
+     */
+    private List<SearchHit> scanNotes(String username, String keyWord, Set<String> notebookScope) {
+        List<SearchHit> hits = new ArrayList<>();
+        File[] notebookDirs = new File(notesDir, username).listFiles();
+        if (notebookDirs == null) {
+            return hits;
+        }
+        for (File notebookDir : notebookDirs) {
+            String notebookName = notebookDir.getName();
+            if (!notebookDir.isDirectory() || notebookName.startsWith(".")
+                    || (notebookScope != null && !notebookScope.contains(notebookName))) {
+                continue;
+            }
+            File[] noteFiles = notebookDir.listFiles();
+            if (noteFiles == null) {
+                continue;
+            }
+            for (File noteFile : noteFiles) {
+                String fileName = noteFile.getName();
+                if (!noteFile.isFile() || !fileName.endsWith(NOTE_EXTENSION)) {
+                    continue;
+                }
+                String content = FileUtil.readFileAsString(noteFile);
+                if (StringUtils.isBlank(content)) {
+                    continue;
+                }
+                String noteTitle = fileName.substring(0, fileName.length() - NOTE_EXTENSION.length());
+                int hitCount = StringUtils.countMatches(content, keyWord) + StringUtils.countMatches(noteTitle, keyWord);
+                if (hitCount > 0) {
+                    hits.add(new SearchHit(notebookName, noteTitle, hitCount, hitCount));
+                }
+            }
+        }
+        hits.sort((o1, o2) -> o2.getHitCount() - o1.getHitCount());
+        return hits;
+    }
+
+    /**
+     * 从内存中移除空闲的索引 正在加载或重建的除外
+     */
+    @Scheduled(fixedDelay = 60 * 1000, initialDelay = 60 * 1000)
+    public void evictIdleIndexes() {
+        long idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+        for (Map.Entry<String, IndexHolder> entry : holderMap.entrySet()) {
+            IndexHolder holder = entry.getValue();
+            synchronized (holder) {
+                if (holder.pendingOps != null || System.nanoTime() - holder.lastAccessNanos < idleNanos) {
+                    continue;
+                }
+                holder.evicted = true;
+                holderMap.remove(entry.getKey(), holder);
+            }
+            log.debug("evict note index of user: {}", entry.getKey());
+        }
+    }
+
+    /**
+     * 修改索引 加载或重建期间同时记录下来, 完成后应用到新索引
+     */
+    private void update(String username, Consumer<UserNoteIndex> op) {
+        while (true) {
+            IndexHolder holder = getHolder(username);
+            synchronized (holder) {
+                if (holder.evicted) {
+                    //恰好被移除 已写入磁盘的修改由重新加载的索引读取
+                    continue;
+                }
+                if (holder.pendingOps != null) {
+                    holder.pendingOps.add(op);
+                }
+                if (holder.index != null) {
+                    op.accept(holder.index);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * 获取用户索引 首次访问时在后台从磁盘加载, 索引文件缺失时扫描笔记目录重建
+     */
+    private IndexHolder getHolder(String username) {
+        IndexHolder holder = holderMap.get(username);
+        if (holder != null) {
+            holder.lastAccessNanos = System.nanoTime();
+            return holder;
+        }
+        IndexHolder created = new IndexHolder();
+        holder = holderMap.putIfAbsent(username, created);
+        if (holder != null) {
+            return holder;
+        }
+        loadExecutor.execute(() -> load(username, created, false));
+        return created;
+    }
+
+    /**
+     * 加载或重建索引 完成后应用期间的修改并替换当前索引
+     * @param rebuild 为false时先尝试从磁盘加载
+     */
+    private void load(String username, IndexHolder holder, boolean rebuild) {
+        UserNoteIndex fresh = new UserNoteIndex(new File(indexDir, username + INDEX_FILE_SUFFIX));
+        try {
+            if (rebuild || !fresh.load()) {
+                build(username, fresh);
+                rebuild = true;
+            }
+        } catch (RuntimeException e) {
+            log.error("load note index of user: {} failed", username, e);
+        }
+        boolean again;
+        synchronized (holder) {
+            if (rebuild) {
+                fresh.compact();
+            }
+            for (Consumer<UserNoteIndex> op : holder.pendingOps) {
+                op.accept(fresh);
+            }
+            holder.index = fresh;
+            again = holder.rebuildRequested;
+            holder.rebuildRequested = false;
+            holder.pendingOps = again ? new ArrayList<>() : null;
+        }
+        holder.ready.complete(null);
+        if (again) {
+            load(username, holder, true);
+        }
+    }
+
+    /**
+     * 扫描笔记目录 把所有笔记写入新索引, 只修改内存, 由调用方最后写快照
+     */
+    private void build(String username, UserNoteIndex index) {
+        long start = System.currentTimeMillis();
+        int noteCount = 0;
+        File[] notebookDirs = new File(notesDir, username).listFiles();
+        if (notebookDirs != null) {
+            for (File notebookDir : notebookDirs) {
+                if (!notebookDir.isDirectory() || notebookDir.getName().startsWith(".")) {
+                    continue;
+                }
+                File[] noteFiles = notebookDir.listFiles();
+                if (noteFiles == null) {
+                    continue;
+                }
+                for (File noteFile : noteFiles) {
+                    String fileName = noteFile.getName();
+                    if (!noteFile.isFile() || !fileName.toLowerCase().endsWith(".md")) {
+                        continue;
+                    }
+                    String content = FileUtil.readFileAsString(noteFile);
+                    if (content == null) {
+                        continue;
+                    }
+                    String noteTitle = fileName.substring(0, fileName.lastIndexOf("."));
+                    index.putDocument(notebookDir.getName(), noteTitle, content.hashCode(),
+                            NoteTokenizer.tokenize(noteTitle), NoteTokenizer.tokenize(content), false);
+                    noteCount++;
+                }
+            }
+        }
+        log.info("rebuild note index of user: {}, {} notes, cost {} ms", username, noteCount, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 按文件重新索引一篇笔记 内容与已索引的相同时(如服务自身的写入)不重新分词
+     */
+    private void reindexFromFile(String username, UserNoteIndex index, String notebookName, String noteTitle) {
+        File noteFile = new File(new File(new File(notesDir, username), notebookName), noteTitle + NOTE_EXTENSION);
+        String content = noteFile.isFile() ? FileUtil.readFileAsString(noteFile) : null;
+        if (content == null) {
+            index.removeDocument(notebookName, noteTitle);
+            return;
+        }
+        int contentHash = content.hashCode();
+        if (index.isIndexed(notebookName, noteTitle, contentHash)) {
+            return;
+        }
+        index.putDocument(notebookName, noteTitle, contentHash,
+                NoteTokenizer.tokenize(noteTitle), NoteTokenizer.tokenize(content));
+    }
+
+    private static class IndexHolder {
+
+        /** 当前查询使用的索引 首次加载完成前为null */
+        private volatile UserNoteIndex index;
+
+        /** 加载或重建期间的修改 为null时没有进行中的加载 */
+        private List<Consumer<UserNoteIndex>> pendingOps = new ArrayList<>();
+
+        /** 重建期间又请求了重建 */
+        private boolean rebuildRequested;
+
+        /** 首次加载完成 */
+        private final CompletableFuture<Void> ready = new CompletableFuture<>();
+
+        private volatile long lastAccessNanos = System.nanoTime();
+
+        /** 已从内存中移除 之后的修改需要重新获取索引 */
+        private boolean evicted;
+    }
+}
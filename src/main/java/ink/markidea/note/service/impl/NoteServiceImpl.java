@@ -1,37 +1,63 @@
 package ink.markidea.note.service.impl;
 
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.LoadingCache;
+import ink.markidea.note.context.git.DirtyNoteTracker;
+import ink.markidea.note.context.git.GitRepositoryPool;
+import ink.markidea.note.context.git.GroupCommitter;
+import ink.markidea.note.context.index.SearchHit;
+import ink.markidea.note.context.note.DraftBuffer;
+import ink.markidea.note.context.note.NotebookTreeCache;
 import ink.markidea.note.dao.DelNoteRepository;
 import ink.markidea.note.entity.DelNoteDo;
+import ink.markidea.note.entity.dto.NoteContent;
+import ink.markidea.note.entity.dto.TextEdit;
 import ink.markidea.note.entity.dto.NotePreviewInfo;
 import ink.markidea.note.entity.dto.UserNoteKey;
 import ink.markidea.note.entity.exception.PromptException;
 import ink.markidea.note.entity.resp.ServerResponse;
 import ink.markidea.note.entity.vo.DeletedNoteVo;
+import ink.markidea.note.entity.vo.NoteDiffVo;
 import ink.markidea.note.entity.vo.NoteVersionVo;
 import ink.markidea.note.entity.vo.NoteVo;
+import ink.markidea.note.entity.vo.NotebookVo;
 import ink.markidea.note.service.IArticleService;
 import ink.markidea.note.service.IFileService;
+import ink.markidea.note.service.INoteHistoryService;
+import ink.markidea.note.service.INoteIndexService;
 import ink.markidea.note.service.INoteService;
 import ink.markidea.note.util.DateTimeUtil;
+import ink.markidea.note.util.DiffUtil;
 import ink.markidea.note.util.FileUtil;
 import ink.markidea.note.util.GitUtil;
+import ink.markidea.note.util.TextPatchUtil;
 import ink.markidea.note.util.ThreadLocalUtil;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
-import org.springframework.util.CollectionUtils;
 
+import javax.annotation.PostConstruct;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 @Service
 @Slf4j
@@ -40,6 +66,13 @@ public class NoteServiceImpl implements INoteService {
     @Value("${notesDir}")
     private String notesDir;
 
+    /**
+     * 展示笔记列表时等待预览加载的最长时间 单位毫秒
+     * 超时的笔记先不带预览返回, 加载完成后刷新目录树
+     */
+    @Value("${notePreviewCache.listWaitMs:200}")
+    private long previewListWaitMs;
+
     @Autowired
     private IFileService fileService;
 
@@ -48,19 +81,63 @@ public class NoteServiceImpl implements INoteService {
 
     private static final String NOTEBOOK_FLAG_FILE = ".notebook";
 
+    /**
+     * 从缓存读取笔记内容的最多尝试次数
+     */
+    private static final int NOTE_READ_ATTEMPTS = 3;
+
     @Autowired
     @Qualifier("userNoteCache")
-    LoadingCache<UserNoteKey, String> userNoteCache;
+    LoadingCache<UserNoteKey, NoteContent> userNoteCache;
 
 
     @Autowired
     @Qualifier("userNotePreviewCache")
-    LoadingCache<UserNoteKey, NotePreviewInfo> userNotePreviewCache;
+    AsyncLoadingCache<UserNoteKey, NotePreviewInfo> userNotePreviewCache;
+
+    @Autowired
+    @Qualifier("historyBlobCache")
+    Cache<ObjectId, byte[]> historyBlobCache;
+
+    @Autowired
+    @Qualifier("historyDiffCache")
+    Cache<String, NoteDiffVo> historyDiffCache;
 
 
     @Autowired
     private IArticleService articleService;
 
+    @Autowired
+    private INoteIndexService noteIndexService;
+
+    @Autowired
+    private INoteHistoryService noteHistoryService;
+
+    @Autowired
+    private GitRepositoryPool gitRepositoryPool;
+
+    @Autowired
+    private GroupCommitter groupCommitter;
+
+    @Autowired
+    private DirtyNoteTracker dirtyNoteTracker;
+
+    @Autowired
+    private NotebookTreeCache notebookTreeCache;
+
+    @Autowired
+    private DraftBuffer draftBuffer;
+
+    @PostConstruct
+    private void init() {
+        //草稿写入磁盘后 预览和目录树随之更新, 对账期间写入的草稿仍记为临时保存
+        draftBuffer.addFlushListener(key -> {
+            dirtyNoteTracker.markDirty(key.getUsername(), getRelativeFileName(key.getNotebookName(), key.getNoteTitle()));
+            userNotePreviewCache.synchronous().invalidate(key);
+            notebookTreeCache.invalidateNote(key.getUsername(), key.getNotebookName(), key.getNoteTitle());
+        });
+    }
+
     /**
      * 展示笔记本
      * 从用户目录中读取
@@ -93,6 +170,16 @@ public class NoteServiceImpl implements INoteService {
         return ServerResponse.buildSuccessResponse(notebookNameList);
     }
 
+    /**
+     * 展示所有笔记本及其笔记
+     * 直接读取内存中的目录树快照
+     */
+    @Override
+    public ServerResponse<List<NotebookVo>> listNotebookTree() {
+        getOrCreateUserNotebookDir();
+        return ServerResponse.buildSuccessResponse(notebookTreeCache.getTree(getUsername(), newNoteBuilder()));
+    }
+
     /**
      * 展示笔记实体的集合
      * @param notebookName 传参为用户笔记文件夹名称
@@ -109,90 +196,117 @@ public class NoteServiceImpl implements INoteService {
      * @return 返回笔记实体的集合
      */
     private List<NoteVo> listNotesByNotebookName(String notebookName) {
-        //新建一个临时文件目录 getOrCreateUserNotebookDir()返回一个用户唯一目录 来容纳指定文件夹的子文件
-        File notebookDir = new File(getOrCreateUserNotebookDir(), notebookName);
+        //从目录树快照中读取 已按修改时间从新到旧排序
+        List<NoteVo> noteVoList = notebookTreeCache.getNotes(getUsername(), notebookName, newNoteBuilder());
         //如果这个笔记本不存在 则抛出异常
-        if (!notebookDir.exists() || notebookDir.isFile()){
+        if (noteVoList == null){
             throw new RuntimeException("No such notebook");
         }
-        //来容纳指定文件夹的子文件
-        File[] childFiles = notebookDir.listFiles();
-        if (childFiles == null || childFiles.length == 0 ){
-            return Collections.emptyList();
-        }
-        //在子文件夹不为空的情况下 获取改动过但未提交至git仓库的文件名的集合
-        Set<String> modifiedSet = GitUtil.getModifiedButUnCommitted(getOrCreateUserGit(), notebookName);
-        //根据上次修改的时间排序
-        Arrays.sort(childFiles, (f1, f2) -> (int) (
-                f2.lastModified() - f1.lastModified()));
-        return Arrays.stream(childFiles).
-                filter(file -> !file.isDirectory())//过滤不是note的文件
-                .filter(file -> checkExtension(file.getName()))//过滤扩展名不是.md的文件
-                .map(file -> {
-                    //获取文件名
-                    String title = file.getName().substring(0,file.getName().lastIndexOf("."));
-                    //使用文件对象自带的方法 获取上一次修改的时间
-                    String lastModifiedDate = DateTimeUtil.dateToStr(new Date(file.lastModified()));
-                    String previewContent = null;
-                    Integer articleId = null;
-                    //从缓存中加载笔记信息
-                    NotePreviewInfo previewInfo = userNotePreviewCache.get(buildUserNoteKey(notebookName, title));
-                    //获取预览信息
-                    if (previewInfo != null) {
-                        previewContent = previewInfo.getPreviewContent();
-                        articleId = previewInfo.getArticleId();
-                    }
-                    //笔记状态 是否包含此文件
-                    //git仓库中是否包含这个key 如果有 则状态为临时保存，暂时不加入临时仓库 若没有则为本地文件
-                    int noteStatus = modifiedSet.contains(getRelativeFileName(notebookName, title)) ?
-                            NoteVo.STATUS_TMP_SAVED : NoteVo.STATUS_PRIVATE;
-                    //返回视图层实体对象 加入map集合
-                    return new NoteVo().setNotebookName(notebookName)
-                            .setTitle(title)
-                            .setStatus(noteStatus)
-                            .setArticleId(articleId)
-                            .setLastModifiedTime(lastModifiedDate)
-                            .setPreviewContent(previewContent);
-                })
-                .collect(Collectors.toList());
+        return noteVoList;
+    }
+
+    /**
+     * 预热当前用户的缓存
+     * 最近修改的笔记优先, 预览逐个加载, 同一时间最多占用一个预览加载线程
+     * 不载入目录树: 目录树会加载全部笔记的预览, 无法限制在预算时间内, 由首次请求载入
+     */
+    @Override
+    public void warmUp(int maxNotes, long budgetMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        articleService.preloadArticleIds(getUsername());
+        List<File> noteFiles = new ArrayList<>();
+        File[] notebookDirs = getOrCreateUserNotebookDir().listFiles(file -> file.isDirectory() && !file.getName().startsWith("."));
+        if (notebookDirs != null) {
+            for (File notebookDir : notebookDirs) {
+                File[] files = notebookDir.listFiles(file -> file.isFile() && checkExtension(file.getName()));
+                if (files != null) {
+                    noteFiles.addAll(Arrays.asList(files));
+                }
+            }
+        }
+        noteFiles.sort((f1, f2) -> Long.compare(f2.lastModified(), f1.lastModified()));
+        for (File noteFile : noteFiles.subList(0, Math.min(maxNotes, noteFiles.size()))) {
+            if (System.nanoTime() - deadline >= 0) {
+                break;
+            }
+            String title = noteFile.getName().substring(0, noteFile.getName().lastIndexOf("."));
+            getPreviewInfo(userNotePreviewCache.get(buildUserNoteKey(noteFile.getParentFile().getName(), title)), deadline);
+        }
+    }
+
+    /**
+     * 一次展示请求内的所有笔记共用同一个等待预览的截止时间
+     */
+    private BiFunction<String, File, NoteVo> newNoteBuilder() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(previewListWaitMs);
+        return (notebookName, file) -> buildNoteVo(notebookName, file, deadline);
+    }
+
+    /**
+     * 由笔记文件生成笔记信息 目录树快照加载时调用
+     */
+    private NoteVo buildNoteVo(String notebookName, File file, long deadline) {
+        //获取文件名
+        String title = file.getName().substring(0,file.getName().lastIndexOf("."));
+        //使用文件对象自带的方法 获取上一次修改的时间
+        String lastModifiedDate = DateTimeUtil.dateToStr(new Date(file.lastModified()));
+        String previewContent = null;
+        Integer articleId = null;
+        //从缓存中加载笔记信息 未能在截止时间前加载完成的 加载完成后使目录树中的这篇笔记失效
+        CompletableFuture<NotePreviewInfo> previewFuture = userNotePreviewCache.get(buildUserNoteKey(notebookName, title));
+        NotePreviewInfo previewInfo = getPreviewInfo(previewFuture, deadline);
+        if (!previewFuture.isDone()) {
+            String username = getUsername();
+            previewFuture.thenRunAsync(() -> notebookTreeCache.invalidateNote(username, notebookName, title));
+        }
+        //获取预览信息
+        if (previewInfo != null) {
+            previewContent = previewInfo.getPreviewContent();
+            articleId = previewInfo.getArticleId();
+        }
+        //笔记状态 改动过但未提交至git仓库的为临时保存 只读内存不执行git status
+        int noteStatus = dirtyNoteTracker.getDirtyFiles(getUsername()).contains(getRelativeFileName(notebookName, title)) ?
+                NoteVo.STATUS_TMP_SAVED : NoteVo.STATUS_PRIVATE;
+        //返回视图层实体对象
+        return new NoteVo().setNotebookName(notebookName)
+                .setTitle(title)
+                .setStatus(noteStatus)
+                .setArticleId(articleId)
+                .setLastModifiedTime(lastModifiedDate)
+                .setPreviewContent(previewContent);
     }
 
     /**
      * 查找用户笔记
+     * 直接查询倒排索引 只为命中的笔记加载预览信息
      * @param keyWord 关键字
      * @param searchNotebooks 查询范围(笔记名)
-     * @return 包含查询到的笔记字段
+     * @return 按相关度排序的笔记
      */
     @Override
     public ServerResponse<List<NoteVo>> search(String keyWord, List<String> searchNotebooks) {
-        List<String> notebookNameList ;
-
-        if (!CollectionUtils.isEmpty(searchNotebooks)){
-            //如果有传进指定的书名集合（前端指定搜索范围）则在搜索范围内搜索
-            notebookNameList = searchNotebooks;
-        } else {
-            //若前端没有指定查询范围 则默认全部笔记
-            notebookNameList = listNotebooks().getData();
-        }
-        if (CollectionUtils.isEmpty(notebookNameList)){
-            return ServerResponse.buildSuccessResponse();
-        }
-        //查询结果集
-        List<NoteVo> res = new ArrayList<>();
-        notebookNameList.forEach(notebookName ->
-                listNotesByNotebookName(notebookName).stream()//通过dto从缓存中获取每一个笔记本对象
-                .map(noteVo -> noteVo.setContent(userNoteCache.get(buildUserNoteKey(notebookName, noteVo.getTitle()))))
-                .filter(noteVo ->
-                        StringUtils.isNotBlank(noteVo.getContent()) //先判断内容是否为空
-                        && (noteVo.getContent().contains(keyWord)   //再判断标题和文章中是否存在关键字
-                        || noteVo.getTitle().contains(keyWord)))
-                .map(noteVo -> //记录搜索命中次数
-                        noteVo.setSearchCount(subStrCount(noteVo.getContent(), keyWord) + subStrCount(noteVo.getTitle(), keyWord)))
-                .forEach(res::add));
-        //根据搜索命中的字符串个数排序
-        res.sort((o1, o2) -> o2.getSearchCount() - o1.getSearchCount());
+        List<SearchHit> hits = noteIndexService.search(getUsername(), keyWord, searchNotebooks);
+        List<NoteVo> res = new ArrayList<>(hits.size());
+        //先发起所有预览的加载 再统一等待
+        List<CompletableFuture<NotePreviewInfo>> previewFutures = new ArrayList<>(hits.size());
+        for (SearchHit hit : hits) {
+            previewFutures.add(userNotePreviewCache.get(buildUserNoteKey(hit.getNotebookName(), hit.getNoteTitle())));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(previewListWaitMs);
+        for (int i = 0; i < hits.size(); i++) {
+            SearchHit hit = hits.get(i);
+            File noteFile = new File(getOrCreateUserNotebookDir(), getRelativeFileName(hit.getNotebookName(), hit.getNoteTitle()));
+            NoteVo noteVo = new NoteVo().setNotebookName(hit.getNotebookName())
+                    .setTitle(hit.getNoteTitle())
+                    .setSearchCount(hit.getHitCount())
+                    .setLastModifiedTime(DateTimeUtil.dateToStr(new Date(noteFile.lastModified())));
+            NotePreviewInfo previewInfo = getPreviewInfo(previewFutures.get(i), deadline);
+            if (previewInfo != null) {
+                noteVo.setPreviewContent(previewInfo.getPreviewContent()).setArticleId(previewInfo.getArticleId());
+            }
+            res.add(noteVo);
+        }
         return ServerResponse.buildSuccessResponse(res);
-
     }
 
     private void createNotebookIfNecessary(String notebookName){
@@ -229,7 +343,8 @@ public class NoteServiceImpl implements INoteService {
             throw new RuntimeException("Create notebook failed");
         }
         String relativeName = notebookName + "/" + NOTEBOOK_FLAG_FILE;
-        GitUtil.addAndCommit(getOrCreateUserGit(), relativeName);
+        withUserGit(git -> GitUtil.addAndCommit(git, relativeName));
+        notebookTreeCache.invalidateNotebook(getUsername(), notebookName);
         log.info("create notebook: {}", notebookName);
         return ServerResponse.buildSuccessResponse();
     }
@@ -263,21 +378,27 @@ public class NoteServiceImpl implements INoteService {
         createNotebookIfNecessary(notebookName);
         String relativeFileName = getRelativeFileName(notebookName,noteTitle);
         File noteFile = new File(getOrCreateUserNotebookDir(), relativeFileName);
-        //确保文件存在 不存在则创建
-        try {
-            if (!noteFile.exists() && !noteFile.createNewFile()){
-                throw new RuntimeException("Save note failed");
-            }
-        } catch (IOException e) {
-            log.error("save note error", e);
+        if (noteFile.isDirectory()) {
             throw new RuntimeException("Save note failed");
         }
+        //正式保存覆盖未写入的草稿
+        draftBuffer.discard(buildUserNoteKey(notebookName, noteTitle));
 
-        //将笔记内容写入文件
-        fileService.writeStringToFile(content,noteFile);
-        GitUtil.addAndCommit(getOrCreateUserGit(),relativeFileName);
+        //将笔记内容写入文件 不存在时创建
+        if (!fileService.writeStringToFile(content, noteFile)) {
+            throw new RuntimeException("Save note failed");
+        }
+        //合并提交模式下只入队 由提交线程统一提交
+        if (groupCommitter.isEnabled()) {
+            groupCommitter.enqueue(getUsername(), relativeFileName);
+        } else {
+            withUserGit(git -> GitUtil.addAndCommit(git, relativeFileName));
+        }
+        dirtyNoteTracker.markClean(getUsername(), relativeFileName);
         //使缓存失效 并重新载入缓存
         invalidateCache(buildUserNoteKey(notebookName, noteTitle));
+        notebookTreeCache.invalidateNote(getUsername(), notebookName, noteTitle);
+        noteIndexService.indexNote(getUsername(), notebookName, noteTitle, content);
         return ServerResponse.buildSuccessResponse();
     }
 
@@ -296,9 +417,59 @@ public class NoteServiceImpl implements INoteService {
         if (noteFile.exists() && noteFile.isDirectory()) {
             return ;
         }
-        fileService.writeStringToFile(content, noteFile);
-        //数据有改动 让原来的缓存失效 重新缓存
-        invalidateCache(buildUserNoteKey(notebookName, noteTitle));
+        UserNoteKey key = buildUserNoteKey(notebookName, noteTitle);
+        //已存在的笔记先写入草稿缓冲 缓存直接替换为草稿, 预览和目录树在写入磁盘后更新
+        //新笔记直接写入 使其立即出现在目录树中
+        if (noteFile.isFile() && draftBuffer.put(key, content)) {
+            userNoteCache.put(key, NoteContent.of(content));
+        } else {
+            if (!fileService.writeStringToFile(content, noteFile)) {
+                throw new RuntimeException("Save note failed");
+            }
+            //数据有改动 让原来的缓存失效 重新缓存
+            invalidateCache(key);
+            notebookTreeCache.invalidateNote(getUsername(), notebookName, noteTitle);
+        }
+        dirtyNoteTracker.markDirty(getUsername(), relativeFileName);
+        noteIndexService.indexNote(getUsername(), notebookName, noteTitle, content);
+    }
+
+    /**
+     * 补丁保存
+     * 基础版本的哈希在缓存内容上首次校验时计算并保存; 修改在缓存内容上一次遍历应用后整篇写入,
+     * 新内容连同哈希放入缓存. 草稿缓冲中的临时保存不写文件, 连续的补丁不需要重新读取文件;
+     * 写入文件的保存会被文件监听当作外部改动使缓存失效, 下一次补丁重新加载
+     */
+    @Override
+    public ServerResponse<String> patchNote(String noteTitle, String notebookName, String baseHash,
+                                            List<TextEdit> edits, boolean tmpSave) {
+        if (StringUtils.isBlank(baseHash)) {
+            throw new IllegalArgumentException("Base hash is required");
+        }
+        UserNoteKey key = buildUserNoteKey(notebookName, noteTitle);
+        //同一篇笔记的补丁保存串行执行 避免基于同一版本的两次修改互相覆盖
+        synchronized (key.lock()) {
+            LoadedNote base = readNote(key);
+            if (base == null) {
+                return ServerResponse.buildErrorResponse("读取笔记失败");
+            }
+            if (!base.getHash().equals(baseHash)) {
+                return ServerResponse.buildErrorResponse(ServerResponse.ResponseCode.NOTE_CONFLICT.getCode(), "笔记已被修改");
+            }
+            String content = TextPatchUtil.apply(base.content, edits);
+            if (tmpSave) {
+                tmpSaveNote(noteTitle, notebookName, content);
+            } else {
+                ServerResponse response = saveNote(noteTitle, notebookName, content);
+                if (!response.isSuccess()) {
+                    return response;
+                }
+            }
+            NoteContent newContent = NoteContent.of(content);
+            String newHash = newContent.getHash(content);
+            userNoteCache.put(key, newContent);
+            return ServerResponse.buildSuccessResponse(newHash);
+        }
     }
 
     /**
@@ -307,7 +478,12 @@ public class NoteServiceImpl implements INoteService {
     @Override
     public void delTmpSavedNote(String noteTitle, String notebookName) {
         //撤销add
-        GitUtil.discardChange(getOrCreateUserGit(), getRelativeFileName(notebookName, noteTitle));
+        String relativeFileName = getRelativeFileName(notebookName, noteTitle);
+        draftBuffer.discard(buildUserNoteKey(notebookName, noteTitle));
+        runWithUserGit(git -> GitUtil.discardChange(git, relativeFileName));
+        dirtyNoteTracker.markClean(getUsername(), relativeFileName);
+        invalidateCache(buildUserNoteKey(notebookName, noteTitle));
+        notebookTreeCache.invalidateNote(getUsername(), notebookName, noteTitle);
     }
 
     /**
@@ -321,17 +497,20 @@ public class NoteServiceImpl implements INoteService {
         String relativeFileName = getRelativeFileName(notebookName,noteTitle);
         File noteFile = new File(getOrCreateUserNotebookDir(), relativeFileName);
         String content = getNote(notebookName, noteTitle).getData();
+        //文件删除后预览无法加载 先取得文章id
+        Integer articleId = articleService.findArticleId(getUsername(), notebookName, noteTitle);
+        draftBuffer.discard(buildUserNoteKey(notebookName, noteTitle));
         if (!noteFile.exists() || !noteFile.delete()){
             return ServerResponse.buildErrorResponse("Can't delete note");
         }
         //获取上一次被使用的信息
-        String lastRef = GitUtil.getFileCurRef(getOrCreateUserGit(),relativeFileName);
-        NotePreviewInfo previewInfo = userNotePreviewCache.get(buildUserNoteKey(notebookName, noteTitle));
-        if (previewInfo.getArticleId() != null) {
-            articleService.deleteArticle(previewInfo.getArticleId());
+        String lastRef = noteHistoryService.getFileCurRef(getUsername(), relativeFileName);
+        if (articleId != null) {
+            articleService.deleteArticle(articleId);
         }
         //删除git中的信息
-        GitUtil.rmAndCommit(getOrCreateUserGit(),relativeFileName);
+        withUserGit(git -> GitUtil.rmAndCommit(git, relativeFileName));
+        dirtyNoteTracker.markClean(getUsername(), relativeFileName);
         //在数据库中删除笔记信息
         delNoteRepository.save(new DelNoteDo().setNotebook(notebookName)
                                     .setTitle(noteTitle)
@@ -339,6 +518,9 @@ public class NoteServiceImpl implements INoteService {
                                     .setContent(content)
                                     .setUsername(getUsername()));
         invalidateCache(buildUserNoteKey(notebookName, noteTitle));
+        UserNoteKey.forget(getUsername(), notebookName, noteTitle);
+        notebookTreeCache.invalidateNote(getUsername(), notebookName, noteTitle);
+        noteIndexService.removeNote(getUsername(), notebookName, noteTitle);
         return ServerResponse.buildSuccessResponse();
     }
 
@@ -357,7 +539,12 @@ public class NoteServiceImpl implements INoteService {
             return ServerResponse.buildErrorResponse("Note already exists");
         }
         //从远程仓库获取文件
-        GitUtil.recoverDeletedFile(getOrCreateUserGit(), relativeFileName, delNoteDO.getLastRef());
+        runWithUserGit(git -> GitUtil.recoverDeletedFile(git, relativeFileName, delNoteDO.getLastRef()));
+        dirtyNoteTracker.markClean(getUsername(), relativeFileName);
+        invalidateCache(buildUserNoteKey(delNoteDO.getNotebook(), delNoteDO.getTitle()));
+        notebookTreeCache.invalidateNote(getUsername(), delNoteDO.getNotebook(), delNoteDO.getTitle());
+        noteIndexService.indexNote(getUsername(), delNoteDO.getNotebook(), delNoteDO.getTitle(),
+                fileService.getContentFromFile(noteFile));
         return clearDelNote(id);//从回收站数据库中移除数据
     }
 
@@ -375,12 +562,38 @@ public class NoteServiceImpl implements INoteService {
     @Override
     public ServerResponse<String> getNote(String notebookName, String noteTitle, String username) {
         //从本地缓存中读取笔记内容 全部返回给前端
-        String content = userNoteCache.get(buildUserNoteKey(notebookName, noteTitle, username));
-
-        if (content == null){
+        LoadedNote note = readNote(buildUserNoteKey(notebookName, noteTitle, username));
+        if (note == null){
             return ServerResponse.buildErrorResponse("读取笔记失败");
         }
-        return ServerResponse.buildSuccessResponse(content);
+        return ServerResponse.buildSuccessResponse(note.content);
+    }
+
+    /**
+     * 读取笔记内容
+     * 堆外内容可能在从缓存取出后, 读取前被淘汰释放, 此时重新从缓存获取;
+     * 连续失败时不再经过缓存, 直接读取草稿或笔记文件
+     * @return 笔记不存在或读取失败时返回null
+     */
+    private LoadedNote readNote(UserNoteKey key) {
+        for (int i = 0; i < NOTE_READ_ATTEMPTS; i++) {
+            NoteContent content = userNoteCache.get(key);
+            if (content == null) {
+                return null;
+            }
+            String text = content.getContent();
+            if (text != null) {
+                return new LoadedNote(text, content);
+            }
+        }
+        log.warn("note content: {} released repeatedly before read, read file directly", key);
+        String text = draftBuffer.get(key);
+        if (text == null) {
+            File noteFile = new File(new File(notesDir, key.getUsername()),
+                    getRelativeFileName(key.getNotebookName(), key.getNoteTitle()));
+            text = noteFile.isFile() ? fileService.getContentFromFile(noteFile) : null;
+        }
+        return text == null ? null : new LoadedNote(text, null);
     }
 
     /**
@@ -392,7 +605,7 @@ public class NoteServiceImpl implements INoteService {
     @Override
     public ServerResponse<List<NoteVersionVo>> getNoteHistory(String notebookName, String noteTitle){
         String relativeFileName = getRelativeFileName(notebookName,noteTitle);
-        List<NoteVersionVo> noteVersionVoList = GitUtil.getNoteHistory(getOrCreateUserGit(),relativeFileName);
+        List<NoteVersionVo> noteVersionVoList = noteHistoryService.getNoteHistory(getUsername(), relativeFileName);
         return ServerResponse.buildSuccessResponse(noteVersionVoList);
     }
 
@@ -406,10 +619,47 @@ public class NoteServiceImpl implements INoteService {
     @Override
     public ServerResponse<String> getNoteHistoryContent(String notebookName, String noteTitle, String versionRef) {
         String relativeFileName = getRelativeFileName(notebookName,noteTitle);
-        String historyContent= GitUtil.getFileHistoryContent(getOrCreateUserGit(), relativeFileName, versionRef);
+        //按版本和路径直接定位blob 同一blob的内容不会改变 可以一直缓存
+        String historyContent = withUserGit(git -> {
+            ObjectId blobId = GitUtil.getFileBlobId(git, relativeFileName, versionRef);
+            return new String(historyBlobCache.get(blobId, id -> GitUtil.readBlob(git, id)), StandardCharsets.UTF_8);
+        });
         return ServerResponse.buildSuccessResponse(historyContent);
     }
 
+    /**
+     * 比较笔记的两个版本
+     * 结果按两个版本的blob id缓存
+     * @param oldRef 旧版本
+     * @param newRef 新版本 为空时与当前内容比较
+     */
+    @Override
+    public ServerResponse<NoteDiffVo> getNoteHistoryDiff(String notebookName, String noteTitle, String oldRef, String newRef) {
+        if (StringUtils.isBlank(oldRef)) {
+            throw new IllegalArgumentException();
+        }
+        String relativeFileName = getRelativeFileName(notebookName, noteTitle);
+        NoteDiffVo diffVo = withUserGit(git -> {
+            ObjectId oldBlobId = GitUtil.getFileBlobId(git, relativeFileName, oldRef);
+            byte[] oldContent = historyBlobCache.get(oldBlobId, id -> GitUtil.readBlob(git, id));
+            ObjectId newBlobId;
+            byte[] newContent;
+            if (StringUtils.isBlank(newRef)) {
+                String content = getNote(notebookName, noteTitle).getData();
+                if (content == null) {
+                    throw new PromptException("笔记不存在");
+                }
+                newContent = content.getBytes(StandardCharsets.UTF_8);
+                newBlobId = new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, newContent);
+            } else {
+                newBlobId = GitUtil.getFileBlobId(git, relativeFileName, newRef);
+                newContent = historyBlobCache.get(newBlobId, id -> GitUtil.readBlob(git, id));
+            }
+            return historyDiffCache.get(oldBlobId.name() + ":" + newBlobId.name(), key -> DiffUtil.diff(oldContent, newContent));
+        });
+        return ServerResponse.buildSuccessResponse(diffVo);
+    }
+
     /**
      * 从历史版本中恢复笔记
      * @param notebookName
@@ -420,12 +670,17 @@ public class NoteServiceImpl implements INoteService {
     @Override
     public ServerResponse<String> resetAndGet(String notebookName, String noteTitle, String versionRef){
         String relativeFileName = getRelativeFileName(notebookName,noteTitle);
-        boolean result = GitUtil.resetAndCommit(getOrCreateUserGit(),relativeFileName,versionRef);
+        draftBuffer.discard(buildUserNoteKey(notebookName, noteTitle));
+        boolean result = withUserGit(git -> GitUtil.resetAndCommit(git, relativeFileName, versionRef));
         if (!result){
             return ServerResponse.buildErrorResponse("Recover to history version failed");
         }
+        dirtyNoteTracker.markClean(getUsername(), relativeFileName);
         invalidateCache(buildUserNoteKey(notebookName, noteTitle));
-        return getNote(notebookName, noteTitle);
+        notebookTreeCache.invalidateNote(getUsername(), notebookName, noteTitle);
+        ServerResponse<String> response = getNote(notebookName, noteTitle);
+        noteIndexService.indexNote(getUsername(), notebookName, noteTitle, response.getData());
+        return response;
     }
 
     /**
@@ -437,8 +692,12 @@ public class NoteServiceImpl implements INoteService {
     public ServerResponse deleteNotebook(String notebookName){
         File notebookDir = new File(getOrCreateUserNotebookDir(), notebookName);
         listNotes(notebookName).getData().forEach(noteVo -> deleteNote(notebookName, noteVo.getTitle()));
+        draftBuffer.discardNotebook(getUsername(), notebookName);
         fileService.deleteFile(notebookDir);
-        GitUtil.rmAndCommit(getOrCreateUserGit(),notebookName + "/" + NOTEBOOK_FLAG_FILE);
+        withUserGit(git -> GitUtil.rmAndCommit(git, notebookName + "/" + NOTEBOOK_FLAG_FILE));
+        dirtyNoteTracker.markNotebookClean(getUsername(), notebookName);
+        notebookTreeCache.invalidate(getUsername());
+        UserNoteKey.forgetNotebook(getUsername(), notebookName);
         return ServerResponse.buildSuccessResponse();
     }
 
@@ -462,13 +721,21 @@ public class NoteServiceImpl implements INoteService {
 //            throw new PromptException("目标笔记本无法创建");
 //        }
         List<NoteVo> noteVoList = listNotes(srcNotebookName).getData();
+        //草稿先写入原笔记本 随目录一起重命名
+        draftBuffer.flushNotebook(getUsername(), srcNotebookName);
         if (!FileUtil.renameFileOrDir(srcNotebookDir, targetNotebookDir)) {
             throw new PromptException("重命名笔记本失败");
         }
-        GitUtil.rmAndCommit(getOrCreateUserGit(), srcNotebookName);
-        GitUtil.addAndCommit(getOrCreateUserGit(), targetNotebookName);
+        runWithUserGit(git -> {
+            GitUtil.rmAndCommit(git, srcNotebookName);
+            GitUtil.addAndCommit(git, targetNotebookName);
+        });
+        dirtyNoteTracker.markNotebookClean(getUsername(), srcNotebookName);
+        notebookTreeCache.invalidate(getUsername());
         noteVoList.forEach(noteVo -> invalidateCache(buildUserNoteKey(srcNotebookName, noteVo.getTitle())));
+        UserNoteKey.forgetNotebook(getUsername(), srcNotebookName);
         articleService.updateArticlesNotebookName(srcNotebookName, targetNotebookName);
+        noteIndexService.renameNotebook(getUsername(), srcNotebookName, targetNotebookName);
     }
 
     /**
@@ -554,16 +821,29 @@ public class NoteServiceImpl implements INoteService {
         }
         String srcRelativeName = getRelativeFileName(srcNotebook, srcTitle);
         File srcFile = new File(getOrCreateUserNotebookDir(), srcRelativeName);
+        //源文件删除后预览无法加载 先取得文章id
+        Integer articleId = articleService.findArticleId(getUsername(), srcNotebook, srcTitle);
+        //先写入目标文件再删除源文件 写入失败时源文件仍在
+        if (!fileService.writeStringToFile(content, targetFile)) {
+            throw new RuntimeException("Move note failed");
+        }
+        //内容已包含草稿 丢弃后源文件不会被重新写出
+        draftBuffer.discard(buildUserNoteKey(srcNotebook, srcTitle));
         fileService.deleteFile(srcFile);
-        fileService.writeStringToFile(content, targetFile);
-        NotePreviewInfo previewInfo = userNotePreviewCache.get(buildUserNoteKey(srcNotebook, srcTitle, getUsername()));
         // 先移动记录
-        if (previewInfo.getArticleId() != null) {
-            articleService.moveArticle(previewInfo.getArticleId(), targetNotebook, targetTitle);
+        if (articleId != null) {
+            articleService.moveArticle(articleId, targetNotebook, targetTitle);
         }
-        GitUtil.mvAndCommit(getOrCreateUserGit(), srcRelativeName, targetRelativeName);
+        withUserGit(git -> GitUtil.mvAndCommit(git, srcRelativeName, targetRelativeName));
+        dirtyNoteTracker.markClean(getUsername(), srcRelativeName);
+        dirtyNoteTracker.markClean(getUsername(), targetRelativeName);
         invalidateCache(buildUserNoteKey(srcNotebook, srcTitle));
-        userNoteCache.put(buildUserNoteKey(targetNotebook, targetTitle), content);
+        UserNoteKey.forget(getUsername(), srcNotebook, srcTitle);
+        userNoteCache.put(buildUserNoteKey(targetNotebook, targetTitle), NoteContent.of(content));
+        notebookTreeCache.invalidateNote(getUsername(), srcNotebook, srcTitle);
+        notebookTreeCache.invalidateNote(getUsername(), targetNotebook, targetTitle);
+        noteIndexService.removeNote(getUsername(), srcNotebook, srcTitle);
+        noteIndexService.indexNote(getUsername(), targetNotebook, targetTitle, content);
         return ServerResponse.buildSuccessResponse();
     }
 
@@ -583,10 +863,21 @@ public class NoteServiceImpl implements INoteService {
         return notebookName + "/" + noteTitle+".md";
     }
 
+    @Override
+    public File getNoteFile(String notebookName, String noteTitle) {
+        //直接读取文件前写入未写入的草稿
+        draftBuffer.flush(buildUserNoteKey(notebookName, noteTitle));
+        File noteFile = new File(getOrCreateUserNotebookDir(), getRelativeFileName(notebookName, noteTitle));
+        if (!noteFile.isFile()) {
+            throw new PromptException("笔记不存在");
+        }
+        return noteFile;
+    }
+
     @Override
     public File getOrInitUserNotebookDir() {
         File dir =  getOrCreateUserNotebookDir();
-        GitUtil.checkGitDir(dir);
+        runWithUserGit(git -> {});
         return null;
     }
 
@@ -613,9 +904,16 @@ public class NoteServiceImpl implements INoteService {
         return null;
     }
 
-    //创建Git 调用用户笔记本的地址
-    public Git getOrCreateUserGit(){
-        return GitUtil.getOrInitGit(getOrCreateUserNotebookDir());
+    //从仓库池中借出用户的git仓库执行操作 执行完毕后归还
+    //执行前先提交合并队列中的文件 保证操作看到完整的历史
+    private <T> T withUserGit(Function<Git, T> action){
+        groupCommitter.flush(getUsername());
+        return gitRepositoryPool.execute(getUsername(), action);
+    }
+
+    private void runWithUserGit(Consumer<Git> action){
+        groupCommitter.flush(getUsername());
+        gitRepositoryPool.run(getUsername(), action);
     }
 
     /**
@@ -641,25 +939,29 @@ public class NoteServiceImpl implements INoteService {
     }
 
     private UserNoteKey buildUserNoteKey(String notebookName, String noteTitle, String username){
-        return new UserNoteKey().setNotebookName(notebookName).setNoteTitle(noteTitle).setUsername(username);
+        return UserNoteKey.of(username, notebookName, noteTitle);
     }
 
 
     /**
-     * 记录搜索时keyWord命中次数
-     * @param target
-     * @param substr
-     * @return
+     * 等待预览加载到截止时间为止
+     * @return 超时或加载失败时返回null
      */
-    private int subStrCount(String target, String substr){
-      int count = 0;
-      int startIndex = 0;
-      int searchIndex;
-      while ((searchIndex = target.indexOf(substr, startIndex)) != -1){
-          count ++;
-          startIndex = searchIndex + substr.length();
+    private NotePreviewInfo getPreviewInfo(CompletableFuture<NotePreviewInfo> previewFuture, long deadline) {
+        if (!previewFuture.isDone()) {
+            try {
+                previewFuture.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                log.error("load note preview failed", e.getCause());
+                return null;
+            }
         }
-      return count;
+        return previewFuture.isCompletedExceptionally() ? null : previewFuture.join();
     }
 
     /**
@@ -667,11 +969,31 @@ public class NoteServiceImpl implements INoteService {
      * @param key
      */
     void invalidateCache(UserNoteKey key){
-        userNotePreviewCache.invalidate(key);
+        userNotePreviewCache.synchronous().invalidate(key);
         userNoteCache.invalidate(key);
     }
 
     File getNotebookDir(String notebookName) {
         return new File(getOrCreateUserNotebookDir(), notebookName);
     }
+
+    /**
+     * 读取到的笔记内容
+     */
+    private static class LoadedNote {
+
+        private final String content;
+
+        /** 直接读取文件时为null */
+        private final NoteContent cached;
+
+        private LoadedNote(String content, NoteContent cached) {
+            this.content = content;
+            this.cached = cached;
+        }
+
+        private String getHash() {
+            return cached == null ? NoteContent.hash(content) : cached.getHash(content);
+        }
+    }
 }
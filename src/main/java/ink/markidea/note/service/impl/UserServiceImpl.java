@@ -3,6 +3,7 @@ package ink.markidea.note.service.impl;
 import com.github.benmanes.caffeine.cache.Cache;
 import ink.markidea.note.constant.RegisterConstant;
 import ink.markidea.note.constant.UserConstant;
+import ink.markidea.note.context.note.NoteCacheWarmer;
 import ink.markidea.note.dao.UserRepository;
 import ink.markidea.note.entity.UserDo;
 import ink.markidea.note.entity.dto.EditorConfigDto;
@@ -48,6 +49,9 @@ public class UserServiceImpl implements IUserService {
     @Autowired
     private UserRepository userRepository;
 
+    @Autowired
+    private NoteCacheWarmer noteCacheWarmer;
+
     private static final String TOKEN_PREFIX = "token_";
 
     @PostConstruct
@@ -71,6 +75,8 @@ public class UserServiceImpl implements IUserService {
             userVo.setEditorConfig(JsonUtil.stringToObj(userDO.getEditorConfig(), EditorConfigDto.class));
         }
         userCache.put(userVo.getUsername(), userVo);
+        //后台预热笔记缓存 首次打开笔记本时不必逐篇读取
+        noteCacheWarmer.warmUp(username);
         return ServerResponse.buildSuccessResponse(userVo);
     }
 
@@ -0,0 +1,175 @@
+package ink.markidea.note.util;
+
+import ink.markidea.note.entity.vo.NoteDiffVo;
+import ink.markidea.note.entity.vo.NoteDiffVo.Hunk;
+import ink.markidea.note.entity.vo.NoteDiffVo.Line;
+import ink.markidea.note.entity.vo.NoteDiffVo.Segment;
+import org.eclipse.jgit.diff.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 文本差异比较
+ * 先用JGit的histogram算法逐行比较, 一一对应修改的行再逐词比较
+ */
+public class DiffUtil {
+
+    private static final DiffAlgorithm ALGORITHM = DiffAlgorithm.getAlgorithm(DiffAlgorithm.SupportedAlgorithm.HISTOGRAM);
+
+    /** 改动前后保留的上下文行数 */
+    private static final int CONTEXT_LINES = 3;
+
+    private DiffUtil() {
+    }
+
+    public static NoteDiffVo diff(byte[] oldContent, byte[] newContent) {
+        RawText oldText = new RawText(oldContent);
+        RawText newText = new RawText(newContent);
+        EditList edits = ALGORITHM.diff(RawTextComparator.DEFAULT, oldText, newText);
+        List<Hunk> hunks = new ArrayList<>();
+        int i = 0;
+        while (i < edits.size()) {
+            //相距不超过两倍上下文的改动合并为一段
+            int j = i;
+            while (j + 1 < edits.size() && edits.get(j + 1).getBeginA() - edits.get(j).getEndA() <= 2 * CONTEXT_LINES) {
+                j++;
+            }
+            Edit first = edits.get(i);
+            int oldStart = Math.max(0, first.getBeginA() - CONTEXT_LINES);
+            int newStart = first.getBeginB() - (first.getBeginA() - oldStart);
+            int oldEnd = Math.min(oldText.size(), edits.get(j).getEndA() + CONTEXT_LINES);
+            List<Line> lines = new ArrayList<>();
+            int oldLine = oldStart;
+            for (int k = i; k <= j; k++) {
+                Edit edit = edits.get(k);
+                for (; oldLine < edit.getBeginA(); oldLine++) {
+                    lines.add(new Line().setType(Line.TYPE_EQUAL).setContent(oldText.getString(oldLine)));
+                }
+                addChangedLines(lines, oldText, newText, edit);
+                oldLine = edit.getEndA();
+            }
+            for (; oldLine < oldEnd; oldLine++) {
+                lines.add(new Line().setType(Line.TYPE_EQUAL).setContent(oldText.getString(oldLine)));
+            }
+            hunks.add(new Hunk().setOldStart(oldStart).setNewStart(newStart).setLines(lines));
+            i = j + 1;
+        }
+        return new NoteDiffVo().setOldLineCount(oldText.size()).setNewLineCount(newText.size()).setHunks(hunks);
+    }
+
+    /**
+     * 先输出删除的行再输出新增的行, 行数相同的修改逐行计算词级差异
+     */
+    private static void addChangedLines(List<Line> lines, RawText oldText, RawText newText, Edit edit) {
+        boolean pairLines = edit.getType() == Edit.Type.REPLACE && edit.getLengthA() == edit.getLengthB();
+        List<Line> insertedLines = new ArrayList<>(edit.getLengthB());
+        for (int offset = 0; offset < Math.max(edit.getLengthA(), edit.getLengthB()); offset++) {
+            Line deletedLine = null;
+            Line insertedLine = null;
+            if (offset < edit.getLengthA()) {
+                deletedLine = new Line().setType(Line.TYPE_DELETE).setContent(oldText.getString(edit.getBeginA() + offset));
+                lines.add(deletedLine);
+            }
+            if (offset < edit.getLengthB()) {
+                insertedLine = new Line().setType(Line.TYPE_INSERT).setContent(newText.getString(edit.getBeginB() + offset));
+                insertedLines.add(insertedLine);
+            }
+            if (pairLines) {
+                diffWords(deletedLine, insertedLine);
+            }
+        }
+        lines.addAll(insertedLines);
+    }
+
+    private static void diffWords(Line deletedLine, Line insertedLine) {
+        TokenSequence oldTokens = TokenSequence.of(deletedLine.getContent());
+        TokenSequence newTokens = TokenSequence.of(insertedLine.getContent());
+        EditList edits = ALGORITHM.diff(TokenSequence.COMPARATOR, oldTokens, newTokens);
+        List<Segment> oldSegments = new ArrayList<>();
+        List<Segment> newSegments = new ArrayList<>();
+        int oldIndex = 0;
+        for (Edit edit : edits) {
+            String equalText = oldTokens.join(oldIndex, edit.getBeginA());
+            addSegment(oldSegments, Line.TYPE_EQUAL, equalText);
+            addSegment(newSegments, Line.TYPE_EQUAL, equalText);
+            addSegment(oldSegments, Line.TYPE_DELETE, oldTokens.join(edit.getBeginA(), edit.getEndA()));
+            addSegment(newSegments, Line.TYPE_INSERT, newTokens.join(edit.getBeginB(), edit.getEndB()));
+            oldIndex = edit.getEndA();
+        }
+        String equalText = oldTokens.join(oldIndex, oldTokens.size());
+        addSegment(oldSegments, Line.TYPE_EQUAL, equalText);
+        addSegment(newSegments, Line.TYPE_EQUAL, equalText);
+        deletedLine.setSegments(oldSegments);
+        insertedLine.setSegments(newSegments);
+    }
+
+    private static void addSegment(List<Segment> segments, int type, String text) {
+        if (!text.isEmpty()) {
+            segments.add(new Segment().setType(type).setText(text));
+        }
+    }
+
+    /**
+     * 按词切分的一行文本
+     * 连续的字母数字为一个词, 连续的空白为一个词, 汉字和标点各自为一个词
+     */
+    private static class TokenSequence extends Sequence {
+
+        private static final SequenceComparator<TokenSequence> COMPARATOR = new SequenceComparator<TokenSequence>() {
+            @Override
+            public boolean equals(TokenSequence a, int ai, TokenSequence b, int bi) {
+                return a.tokens.get(ai).equals(b.tokens.get(bi));
+            }
+
+            @Override
+            public int hash(TokenSequence seq, int ptr) {
+                return seq.tokens.get(ptr).hashCode();
+            }
+        };
+
+        private final List<String> tokens;
+
+        private TokenSequence(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        private static TokenSequence of(String line) {
+            List<String> tokens = new ArrayList<>();
+            int i = 0;
+            while (i < line.length()) {
+                char c = line.charAt(i);
+                int end = i + 1;
+                if (isWordChar(c)) {
+                    while (end < line.length() && isWordChar(line.charAt(end))) {
+                        end++;
+                    }
+                } else if (Character.isWhitespace(c)) {
+                    while (end < line.length() && Character.isWhitespace(line.charAt(end))) {
+                        end++;
+                    }
+                }
+                tokens.add(line.substring(i, end));
+                i = end;
+            }
+            return new TokenSequence(tokens);
+        }
+
+        private static boolean isWordChar(char c) {
+            return Character.isLetterOrDigit(c) && !Character.isIdeographic(c);
+        }
+
+        private String join(int begin, int end) {
+            StringBuilder builder = new StringBuilder();
+            for (int i = begin; i < end; i++) {
+                builder.append(tokens.get(i));
+            }
+            return builder.toString();
+        }
+
+        @Override
+        public int size() {
+            return tokens.size();
+        }
+    }
+}
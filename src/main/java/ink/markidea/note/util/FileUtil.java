@@ -1,13 +1,28 @@
 package ink.markidea.note.util;
 
+import ink.markidea.note.constant.WriteDurability;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -32,21 +47,200 @@ public class FileUtil {
 
     public static long TB_LIMIT = 1000 * GB_LIMIT;
 
+    /**
+     * 原子写入使用的临时文件 .<文件名>.<8位随机串>.tmp
+     */
+    public static final String TEMP_FILE_GLOB = ".*.tmp";
+
+    private static final Pattern TEMP_FILE_PATTERN = Pattern.compile("^\\..+\\.[0-9a-f]{8}\\.tmp$");
 
+
+    /**
+     * 以UTF-8读取整个文件 按打开后的实际大小分配数组, 循环读满后解码
+     * 使用FileInputStream而不是FileChannel.open, 1KB左右的小笔记上少一次通道的创建, 耗时与原实现持平
+     * @return 读取失败时返回null
+     */
     public static String readFileAsString(File file) {
         try (FileInputStream inputStream = new FileInputStream(file)) {
-            byte[] bytes = new byte[inputStream.available()];
-            inputStream.read(bytes);
-            return new String(bytes);
+            long size = inputStream.getChannel().size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("file too large: " + size);
+            }
+            byte[] bytes = new byte[(int) size];
+            int length = 0;
+            while (length < bytes.length) {
+                int count = inputStream.read(bytes, length, bytes.length - length);
+                if (count < 0) {
+                    //文件在读取期间被截断
+                    break;
+                }
+                length += count;
+            }
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
         } catch (IOException e) {
             log.error("read file:{} failed, cause is", file.getAbsolutePath(), e);
             return null;
         }
     }
 
+    /**
+     * 把文件从当前打开的通道原样写入输出流 不经过解码
+     * 目标是包装输出流的通道, 不是文件或套接字通道, transferTo 不会使用sendfile等零拷贝方式,
+     * 而是经过一个小的堆内缓冲区在用户空间分块拷贝, 再由servlet输出流写出
+     * @param size 写入的字节数 一般为打开通道后读取的文件大小
+     * @return 实际写入的字节数 文件被截断时小于size
+     */
+    public static long transfer(FileChannel channel, long size, OutputStream outputStream) throws IOException {
+        WritableByteChannel target = Channels.newChannel(outputStream);
+        long position = 0;
+        while (position < size) {
+            long count = channel.transferTo(position, size - position, target);
+            if (count <= 0) {
+                break;
+            }
+            position += count;
+        }
+        return position;
+    }
+
+    /**
+     * 由文件的inode, 修改时间(纳秒)和大小生成强ETag, 不读取文件内容
+     * 笔记以原子重命名写入, 每次写入都会换成新文件, ETag随之变化
+     * @return 文件不存在时返回null
+     */
+    public static String getFileETag(File file) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+        Object fileKey = attributes.fileKey();
+        return "\"" + Long.toHexString(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS))
+                + "-" + Long.toHexString(attributes.size())
+                + (fileKey == null ? "" : "-" + Integer.toHexString(fileKey.hashCode())) + "\"";
+    }
+
+
+    /**
+     * 只读取文件开头至多 maxBytes 个字节 按UTF-8解码, 截断处不完整的字符被丢弃
+     * @return 文件不存在或读取失败时返回null
+     */
+    public static String readFileHead(File file, int maxBytes) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(maxBytes, channel.size()));
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                //读满或到达文件末尾为止
+            }
+            int length = buffer.position();
+            if (length == maxBytes) {
+                length = completeUtf8Length(buffer.array(), length);
+            }
+            return new String(buffer.array(), 0, length, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.error("read head of file:{} failed, cause is", file.getAbsolutePath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * 去掉末尾被截断的UTF-8多字节字符
+     */
+    private static int completeUtf8Length(byte[] bytes, int length) {
+        int start = length - 1;
+        //回退到最后一个字符的首字节
+        while (start >= 0 && start > length - 4 && (bytes[start] & 0xC0) == 0x80) {
+            start--;
+        }
+        if (start < 0) {
+            return length;
+        }
+        int lead = bytes[start] & 0xFF;
+        int charLength = lead < 0x80 ? 1 : lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+        return start + charLength > length ? start : length;
+    }
+
+    /**
+     * 原子写入: 先以UTF-8写入同目录下的临时文件, 再原子重命名覆盖目标文件
+     * 写入过程中崩溃时目标文件保持原内容, 不会出现写了一半的文件
+     * @param durability 重命名前后是否刷盘
+     */
+    public static boolean writeStringToFileAtomically(String content, File targetFile, WriteDurability durability) {
+        Path target = targetFile.toPath().toAbsolutePath();
+        Path dir = target.getParent();
+        Path tmp = dir.resolve("." + targetFile.getName() + "." + UUID.randomUUID().toString().substring(0, 8) + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (durability != WriteDurability.NONE) {
+                    channel.force(true);
+                }
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (durability == WriteDurability.FSYNC_DIR) {
+                forceDirectory(dir);
+            }
+            return true;
+        } catch (IOException e) {
+            log.error("write to file:{} failed, cause is", targetFile.getAbsolutePath(), e);
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException deleteException) {
+                log.warn("delete temp file:{} failed", tmp, deleteException);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 删除目录及其子目录下崩溃遗留的原子写入临时文件
+     * 只删除修改时间早于 minAgeMillis 的文件, 避免删掉正在写入的临时文件
+     * @return 删除的文件数
+     */
+    public static int deleteLeftoverTempFiles(File dir, long minAgeMillis) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long deadline = System.currentTimeMillis() - minAgeMillis;
+        int deleted = 0;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (!file.getName().equals(".git")) {
+                    deleted += deleteLeftoverTempFiles(file, minAgeMillis);
+                }
+                continue;
+            }
+            if (TEMP_FILE_PATTERN.matcher(file.getName()).matches() && file.lastModified() < deadline && file.delete()) {
+                log.info("deleted leftover temp file:{}", file.getAbsolutePath());
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * 刷新目录 使目录项的变更(如重命名)落盘 不支持打开目录的系统上忽略
+     */
+    private static void forceDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.debug("fsync dir:{} not supported", dir, e);
+        }
+    }
 
     public static boolean writeStringToFile(String content, File targetFile) {
-        try (Writer writer = new FileWriter(targetFile);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(targetFile), StandardCharsets.UTF_8);
              BufferedWriter bufferedWriter = new BufferedWriter(writer)) {
             bufferedWriter.write(content);
             bufferedWriter.flush();
@@ -3,7 +3,6 @@ package ink.markidea.note.util;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
-import ink.markidea.note.entity.exception.PromptException;
 import ink.markidea.note.entity.vo.NoteVersionVo;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
@@ -11,33 +10,36 @@ import lombok.NoArgsConstructor;
 import lombok.Setter;
 import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jgit.api.AddCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.api.StatusCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.JGitInternalException;
 import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.diff.DiffFormatter;
-import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.StoredConfig;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.*;
-import org.eclipse.jgit.treewalk.AbstractTreeIterator;
 import org.eclipse.jgit.treewalk.CanonicalTreeParser;
-import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.util.FS;
 import org.eclipse.jgit.util.io.DisabledOutputStream;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
-import static org.eclipse.jgit.diff.DiffEntry.Side.OLD;
 import static org.eclipse.jgit.lib.ConfigConstants.*;
 
 @Slf4j
@@ -66,6 +68,32 @@ public class GitUtil {
 
     private static final String GIT_FLAG_FILE = ".markidea";
 
+    /**
+     * 提交后的回调 参数为提交所在的仓库
+     */
+    private static final List<Consumer<Repository>> COMMIT_LISTENERS = new CopyOnWriteArrayList<>();
+
+    public static void addCommitListener(Consumer<Repository> listener) {
+        COMMIT_LISTENERS.add(listener);
+    }
+
+    //提交并通知回调
+    private static RevCommit commit(Git git, String message) throws GitAPIException {
+        RevCommit revCommit = git.commit().setMessage(message).call();
+        notifyCommitListeners(git);
+        return revCommit;
+    }
+
+    private static void notifyCommitListeners(Git git) {
+        for (Consumer<Repository> listener : COMMIT_LISTENERS) {
+            try {
+                listener.accept(git.getRepository());
+            } catch (RuntimeException e) {
+                log.error("git commit listener error", e);
+            }
+        }
+    }
+
     private static Git createNewGit(String path) {
         File gitDir = new File(path);
         return createNewGit(gitDir);
@@ -107,21 +135,17 @@ public class GitUtil {
     }
 
     /**
-     * 获取笔记的历史版本信息
+     * 由涉及该文件的提交生成笔记的历史版本信息
+     * @param noteCommitList 涉及该文件的提交 从新到旧
      */
-    public static List<NoteVersionVo> getNoteHistory(Git git, String fileName) {
+    public static List<NoteVersionVo> buildNoteHistory(List<NoteCommit> noteCommitList, String fileName) {
         //获取笔记历史版本
         List<NoteVersionVo> noteVersionVoList = new ArrayList<>();
-        //获取每次笔记提交对象
-        List<RevCommit> revCommitList = getVersionHistory(git, fileName);
 
         Set<String> skippedRefs = new HashSet<>();
 
-        for (RevCommit revCommit : revCommitList) {
-            //创建笔记历史版本信息dto
-            CommitMessage message;
-            //使用JsonUtil转换信息格式
-            message = JsonUtil.stringToObj(revCommit.getFullMessage(), CommitMessage.class);
+        for (NoteCommit noteCommit : noteCommitList) {
+            CommitMessage message = noteCommit.getMessage();
             //保证非空
             if (message == null || message.getChangeType() == null){
                 continue;
@@ -131,36 +155,30 @@ public class GitUtil {
                 skippedRefs.add(message.prevRef);
             }
             //如果有重复的提交 则跳过
-            if (skippedRefs.contains(revCommit.getName())) {
+            if (skippedRefs.contains(noteCommit.getRef())) {
                 continue;
             }
             //提交修改过的笔记
-            if (isContentChangeCommit(message.getChangeType(), fileName.equals(message.getFileName()))) {
+            if (isContentChangeCommit(message.getChangeType(), message.touchesFile(fileName))) {
                 //加入版本信息
                 noteVersionVoList.add(
                         new NoteVersionVo()
-                        .setDate(DateTimeUtil.dateToStr(revCommit.getAuthorIdent().getWhen()))
-                        .setRef(revCommit.getName()));
+                        .setDate(DateTimeUtil.dateToStr(new Date(noteCommit.getTime())))
+                        .setRef(noteCommit.getRef()));
             }
         }
         return noteVersionVoList;
     }
 
     /**
-     * 获取某个笔记提交保存的对象
-     * RevCommit 是每次提交的笔记对象
+     * 解析提交信息
      */
-    private static List<RevCommit> getVersionHistory(Git git, String fileName) {
-        List<RevCommit> list = new ArrayList<>();
-        Iterable<RevCommit> iterable = null;
-        try {
-            //log：View commit history
-            iterable = git.log().addPath(fileName).call();
-        } catch (GitAPIException e) {
-            return list;
-        }
-        iterable.forEach(list::add);
-        return list;
+    public static NoteCommit toNoteCommit(RevCommit revCommit) {
+        return new NoteCommit()
+                .setRef(revCommit.getName())
+                .setTime(revCommit.getAuthorIdent().getWhen().getTime())
+                //使用JsonUtil转换信息格式
+                .setMessage(JsonUtil.stringToObj(revCommit.getFullMessage(), CommitMessage.class));
     }
 
     /**
@@ -171,7 +189,7 @@ public class GitUtil {
     public static boolean addAndCommit(Git git, String fileName) {
         try {
             git.add().addFilepattern(fileName).call();
-            git.commit().setMessage(getCommitMsgStr(ChangeType.NEW_OR_MODIFY, fileName)).call();
+            commit(git, getCommitMsgStr(ChangeType.NEW_OR_MODIFY, fileName));
             return true;
         } catch (GitAPIException | JGitInternalException e) {
             log.error("can't add file: {}, cause is: {}", fileName, e.getMessage());
@@ -179,6 +197,32 @@ public class GitUtil {
         }
     }
 
+    /**
+     * 将多个文件合并为一次提交
+     * 提交信息中记录本次提交的所有文件
+     * @param git
+     * @param fileNames
+     */
+    public static boolean addAndCommit(Git git, Collection<String> fileNames) {
+        if (fileNames.isEmpty()) {
+            return true;
+        }
+        List<String> fileNameList = new ArrayList<>(fileNames);
+        try {
+            AddCommand addCommand = git.add();
+            fileNameList.forEach(addCommand::addFilepattern);
+            addCommand.call();
+            commit(git, JsonUtil.objToString(new CommitMessage()
+                    .setChangeType(ChangeType.NEW_OR_MODIFY)
+                    .setFileName(fileNameList.get(0))
+                    .setFileNames(fileNameList)));
+            return true;
+        } catch (GitAPIException | JGitInternalException e) {
+            log.error("can't add files: {}, cause is: {}", fileNameList, e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * 移动文件操作
      * @param git
@@ -193,7 +237,7 @@ public class GitUtil {
             //移除旧文件
             git.rm().addFilepattern(oldFilename).call();
             //设置changeType并提交
-            git.commit().setMessage(getCommitMsgStr(ChangeType.MOVE, newFilename)).call();
+            commit(git, getCommitMsgStr(ChangeType.MOVE, newFilename));
             return true;
         } catch (GitAPIException | JGitInternalException e) {
             log.error("can't move file: {}, cause is: {}", oldFilename, e.getMessage());
@@ -209,7 +253,7 @@ public class GitUtil {
     public static boolean rmAndCommit(Git git, String fileName) {
         try {
             git.rm().addFilepattern(fileName).call();
-            git.commit().setMessage(getCommitMsgStr(ChangeType.DELETE, fileName)).call();
+            commit(git, getCommitMsgStr(ChangeType.DELETE, fileName));
             return true;
         } catch (GitAPIException | JGitInternalException e) {
             log.error("can't remove file: {}, cause is: {}", fileName, e.getMessage());
@@ -238,7 +282,7 @@ public class GitUtil {
              */
             git.checkout().addPath(fileName).call();
             //commit回滚信息
-            git.commit().setMessage(JsonUtil.objToString(new CommitMessage().setChangeType(ChangeType.RESET).setFileName(fileName).setPrevRef(versionRef))).call();
+            commit(git, JsonUtil.objToString(new CommitMessage().setChangeType(ChangeType.RESET).setFileName(fileName).setPrevRef(versionRef)));
             log.info("reset file: {} to version: {}", fileName, versionRef);
             return true;
         } catch (GitAPIException | JGitInternalException e) {
@@ -260,9 +304,7 @@ public class GitUtil {
             //加入到暂存区
             git.add().addFilepattern(fileName).call();
             //提交改动信息
-            git.commit()
-                    .setMessage(JsonUtil.objToString(new CommitMessage().setChangeType(ChangeType.RECOVER).setFileName(fileName)))
-                    .call();
+            commit(git, JsonUtil.objToString(new CommitMessage().setChangeType(ChangeType.RECOVER).setFileName(fileName)));
             log.info("recover deleted file: {}", fileName);
         } catch (GitAPIException e) {
             log.error("Can't recover deleted file: {}", fileName, e);
@@ -274,11 +316,17 @@ public class GitUtil {
      * @param privateKeyPath 存储用户私钥
      */
     public static void pushToRemoteViaSsh(Git git, String privateKeyPath) throws GitAPIException {
+        pushToRemoteViaSsh(git, privateKeyPath, 0);
+    }
+
+    /**
+     * @param timeoutSeconds 网络读写超时 单位秒 0为不超时
+     */
+    public static void pushToRemoteViaSsh(Git git, String privateKeyPath, int timeoutSeconds) throws GitAPIException {
         SshSessionFactory sshSessionFactory = new MyJshConfigSessionFactory(privateKeyPath);
-        git.push().setTransportConfigCallback(transport -> {
+        git.push().setTimeout(timeoutSeconds).setTransportConfigCallback(transport -> {
             SshTransport sshTransport = (SshTransport) transport;
             sshTransport.setSshSessionFactory(sshSessionFactory);
-            System.out.println("push");
         }).call();
     }
 
@@ -289,6 +337,8 @@ public class GitUtil {
             SshTransport sshTransport = (SshTransport) transport;
             sshTransport.setSshSessionFactory(sshSessionFactory);
         }).call();
+        //拉取可能产生合并提交
+        notifyCommitListeners(git);
     }
 
     public static void pushToRemoteViaHttp(Git git, String username, String password) throws GitAPIException {
@@ -324,9 +374,35 @@ public class GitUtil {
         setRemoteBranch(git);
     }
 
+    /**
+     * 配置与当前不同时才设置远程仓库和分支 避免每次推送都重写.git/config
+     */
+    public static void setRemoteRepositoryAndBranchIfChanged(Git git, String remoteUrl) throws IOException {
+        StoredConfig config = git.getRepository().getConfig();
+        boolean same = remoteUrl.equals(config.getString(CONFIG_REMOTE_SECTION, DEFAULT_REMOTE_ALIAS_NAME, CONFIG_KEY_URL))
+                && DEFAULT_REMOTE_ALIAS_NAME.equals(config.getString(CONFIG_BRANCH_SECTION, DEFAULT_LOCAL_BRANCH_NAME, CONFIG_KEY_REMOTE))
+                && ("refs/heads/" + DEFAULT_REMOTE_BRANCH_NAME).equals(config.getString(CONFIG_BRANCH_SECTION, DEFAULT_LOCAL_BRANCH_NAME, CONFIG_KEY_MERGE));
+        if (!same) {
+            setRemoteRepositoryAndBranch(git, remoteUrl);
+        }
+    }
+
+    /**
+     * 本地分支是否有尚未推送到远程仓库的提交
+     * 以远程跟踪分支为上次推送的位置, 推送成功后由JGit更新
+     */
+    public static boolean hasUnpushedCommits(Git git) throws IOException {
+        Repository repository = git.getRepository();
+        ObjectId head = repository.resolve(Constants.HEAD);
+        if (head == null) {
+            return false;
+        }
+        ObjectId pushed = repository.resolve(Constants.R_REMOTES + DEFAULT_REMOTE_ALIAS_NAME + "/" + DEFAULT_REMOTE_BRANCH_NAME);
+        return !head.equals(pushed);
+    }
+
     //获取文件上一次被使用的信息
-    public static String getFileCurRef(Git git, String fileName) {
-        List<NoteVersionVo> noteVersionVoList = getNoteHistory(git, fileName);
+    public static String getFileCurRef(List<NoteVersionVo> noteVersionVoList) {
         for (NoteVersionVo noteVersionVo : noteVersionVoList) {
             return noteVersionVo.getRef();
         }
@@ -334,43 +410,37 @@ public class GitUtil {
     }
 
     /**
-     * 获取文件某个历史版本的内容
+     * 获取文件在某个提交中的blob id
+     * 直接按路径查找提交的树 不需要比较和遍历历史
      */
-    public static String getFileHistoryContent(Git git, String filePath, String ref) {
-        List<RevCommit> revCommitList = getVersionHistory(git, filePath);
-        String curRef = revCommitList.get(0).getName();
-        //判断是否为当前版本
-        if (ref.equals(curRef)) {
-            throw new PromptException("当前版本无需预览");
-        }
-        //获取git仓库
+    public static ObjectId getFileBlobId(Git git, String filePath, String ref) {
         Repository repository = git.getRepository();
-        try {
-            //获取迭代器 遍历branch
-            AbstractTreeIterator oldTreeParser = prepareTreeParser(repository, ref);
-            AbstractTreeIterator newTreeParser = prepareTreeParser(repository, curRef);
-            //获取变更内容
-            //查看工作区与暂存区内容的区别，使用无选项的git diff命令。
-            //git diff file_name：获取指定文件的修改
-            List<DiffEntry> diff = git
-                    .diff()
-                    .setOldTree(oldTreeParser)
-                    .setNewTree(newTreeParser)
-                    .setPathFilter(PathFilter.create(filePath))
-                    .call();
-
-            for (DiffEntry entry : diff) {
-                try (DiffFormatter formatter = new DiffFormatter(System.out)) {
-                    formatter.setRepository(repository);
-                    Method method = DiffFormatter.class.getDeclaredMethod("open", DiffEntry.Side.class, DiffEntry.class);
-                    method.setAccessible(true);
-                    RawText rawText = (RawText) method.invoke(formatter, OLD, entry);
-                    return new String(rawText.getRawContent());
+        try (RevWalk walk = new RevWalk(repository)) {
+            ObjectId commitId = repository.resolve(ref);
+            if (commitId == null) {
+                throw new IllegalArgumentException("No such version: " + ref);
+            }
+            RevCommit commit = walk.parseCommit(commitId);
+            try (TreeWalk treeWalk = TreeWalk.forPath(repository, filePath, commit.getTree())) {
+                if (treeWalk == null) {
+                    throw new IllegalArgumentException("No such file: " + filePath + " in version: " + ref);
                 }
+                return treeWalk.getObjectId(0);
             }
-            throw new RuntimeException();
-        } catch (Exception e) {
-            log.error("getHistory content error", e);
+        } catch (IOException e) {
+            log.error("resolve file: {} of version: {} error", filePath, ref, e);
+            throw new IllegalArgumentException();
+        }
+    }
+
+    /**
+     * 读取blob内容
+     */
+    public static byte[] readBlob(Git git, ObjectId blobId) {
+        try (ObjectReader reader = git.getRepository().newObjectReader()) {
+            return reader.open(blobId, Constants.OBJ_BLOB).getCachedBytes(Integer.MAX_VALUE);
+        } catch (IOException e) {
+            log.error("read blob: {} error", blobId.name(), e);
             throw new IllegalArgumentException();
         }
     }
@@ -475,10 +545,43 @@ public class GitUtil {
 
         private String newFileName;
 
+        /**
+         * 合并提交时本次提交的所有文件
+         */
+        private List<String> fileNames;
+
         /**
          * the prev commit ref reset
          */
         private String prevRef;
+
+        /**
+         * 本次提交是否涉及该文件
+         */
+        public boolean touchesFile(String name) {
+            return name.equals(fileName) || (fileNames != null && fileNames.contains(name));
+        }
+    }
+
+    /**
+     * 已解析的提交
+     */
+    @Getter
+    @Setter
+    @Accessors(chain = true)
+    public static class NoteCommit {
+
+        private String ref;
+
+        /**
+         * 提交时间 毫秒
+         */
+        private long time;
+
+        /**
+         * 提交信息 不是本系统生成的提交为null
+         */
+        private CommitMessage message;
     }
 
     @Getter
@@ -524,8 +627,8 @@ public class GitUtil {
     }
 
     public static  boolean checkGitDir(File file) {
-        try {
-            return Git.open(file) != null;
+        try (Git git = Git.open(file)) {
+            return true;
         }catch (IOException e) {
             return false;
         }
@@ -553,11 +656,41 @@ public class GitUtil {
         }
     }
 
+    /**
+     * 在仓库的 .git/info/exclude 中追加忽略规则 已存在时不重复添加
+     * 只影响本地仓库, 不会像 .gitignore 一样被提交和推送
+     */
+    public static void addExcludePattern(Git git, String pattern) {
+        File excludeFile = new File(git.getRepository().getDirectory(), "info/exclude");
+        try {
+            List<String> lines = excludeFile.isFile()
+                    ? Files.readAllLines(excludeFile.toPath(), StandardCharsets.UTF_8) : Collections.emptyList();
+            if (lines.contains(pattern)) {
+                return;
+            }
+            Files.createDirectories(excludeFile.getParentFile().toPath());
+            String content = (lines.isEmpty() || lines.get(lines.size() - 1).isEmpty() ? "" : "\n") + pattern + "\n";
+            Files.write(excludeFile.toPath(), content.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            log.error("add exclude pattern: {} to {} failed", pattern, excludeFile, e);
+        }
+    }
+
+    //获取整个仓库中被更改但未被提交的文件
+    public static Set<String> getModifiedButUnCommitted(Git git) {
+        return getModifiedButUnCommitted(git, null);
+    }
+
     //获取被更改但未被提交但数据
     public static Set<String> getModifiedButUnCommitted(Git git, String dirPath) {
         try {
             //获取当前状态
-            Status status = git.status().addPath(dirPath).call();
+            StatusCommand statusCommand = git.status();
+            if (dirPath != null) {
+                statusCommand.addPath(dirPath);
+            }
+            Status status = statusCommand.call();
             Set<String> modifiedSet = status.getModified();
             Set<String> unTrackedSet = status.getUntracked();
             if (unTrackedSet.isEmpty()) {
@@ -585,29 +718,4 @@ public class GitUtil {
         }
     }
 
-    /**
-     * 生成迭代器 用于遍历branch
-     * @param repository
-     * @param objectId
-     * @return
-     * @throws IOException
-     */
-    private static AbstractTreeIterator prepareTreeParser(Repository repository, String objectId) throws IOException {
-        // from the commit we can build the tree which allows us to construct the TreeParser
-        // no inspection Duplicates
-        try (RevWalk walk = new RevWalk(repository)) {
-            RevCommit commit = walk.parseCommit(ObjectId.fromString(objectId));
-            RevTree tree = walk.parseTree(commit.getTree().getId());
-
-            CanonicalTreeParser treeParser = new CanonicalTreeParser();
-            try (ObjectReader reader = repository.newObjectReader()) {
-                treeParser.reset(reader, tree.getId());
-            }
-
-            walk.dispose();
-
-            return treeParser;
-        }
-    }
-
 }
@@ -0,0 +1,73 @@
+package ink.markidea.note.util;
+
+import java.util.regex.Pattern;
+
+/**
+ * Markdown工具类
+ * 去掉常见的Markdown标记 得到用于预览的纯文本
+ */
+public class MarkdownUtil {
+
+    private static final Pattern FENCE = Pattern.compile("^\\s*(```|~~~).*$");
+
+    private static final Pattern HORIZONTAL_RULE = Pattern.compile("^\\s*([-*_]\\s*){3,}$");
+
+    private static final Pattern TABLE_DELIMITER = Pattern.compile("^\\s*\\|?\\s*:?-+:?\\s*(\\|\\s*:?-+:?\\s*)*\\|?\\s*$");
+
+    /** 标题, 引用, 列表, 任务列表等行首标记 */
+    private static final Pattern LINE_PREFIX = Pattern.compile("^\\s*(#{1,6}\\s+|(>\\s?)+|[-*+]\\s+(\\[[ xX]]\\s+)?|\\d+[.)]\\s+)");
+
+    private static final Pattern IMAGE = Pattern.compile("!\\[([^\\]]*)]\\([^)]*\\)");
+
+    private static final Pattern LINK = Pattern.compile("\\[([^\\]]*)]\\([^)]*\\)");
+
+    private static final Pattern HTML_TAG = Pattern.compile("<[^>]+>");
+
+    /** 加粗, 删除线, 行内代码 */
+    private static final Pattern INLINE_MARK = Pattern.compile("\\*\\*|__|~~|`");
+
+    /** 单个星号或下划线的斜体 不处理词中的下划线 */
+    private static final Pattern EMPHASIS = Pattern.compile("(?<![\\w*])[*_](?=\\S)|(?<=\\S)[*_](?![\\w*])");
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private MarkdownUtil() {
+    }
+
+    /**
+     * 转为纯文本 各行以空格连接
+     * @param maxLength 结果的最大长度
+     */
+    public static String toPlainText(String markdown, int maxLength) {
+        StringBuilder builder = new StringBuilder();
+        for (String line : markdown.split("\r?\n")) {
+            if (builder.length() >= maxLength) {
+                break;
+            }
+            if (FENCE.matcher(line).matches() || HORIZONTAL_RULE.matcher(line).matches()
+                    || TABLE_DELIMITER.matcher(line).matches()) {
+                continue;
+            }
+            String text = LINE_PREFIX.matcher(line).replaceFirst("");
+            text = IMAGE.matcher(text).replaceAll("$1");
+            text = LINK.matcher(text).replaceAll("$1");
+            text = HTML_TAG.matcher(text).replaceAll("");
+            text = INLINE_MARK.matcher(text).replaceAll("");
+            text = EMPHASIS.matcher(text).replaceAll("");
+            text = WHITESPACE.matcher(text.replace('|', ' ')).replaceAll(" ").trim();
+            if (text.isEmpty()) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(text);
+        }
+        if (builder.length() <= maxLength) {
+            return builder.toString();
+        }
+        //不截断代理对
+        int end = Character.isHighSurrogate(builder.charAt(maxLength - 1)) ? maxLength - 1 : maxLength;
+        return builder.substring(0, end);
+    }
+}
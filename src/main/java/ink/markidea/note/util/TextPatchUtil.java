@@ -0,0 +1,43 @@
+package ink.markidea.note.util;
+
+import ink.markidea.note.entity.dto.TextEdit;
+
+import java.util.List;
+
+/**
+ * 把一组修改应用到文本上
+ */
+public class TextPatchUtil {
+
+    /**
+     * 修改需按位置从前到后排列且互不重叠
+     * 未修改的部分按段整体拷贝, 一次遍历完成, 不会因修改次数多而反复拷贝整个文本
+     * @throws IllegalArgumentException 修改位置越界, 重叠或未排序
+     */
+    public static String apply(String base, List<TextEdit> edits) {
+        int newLength = base.length();
+        int end = 0;
+        for (TextEdit edit : edits) {
+            if (edit.getOffset() < end || edit.getDeleteLength() < 0
+                    || edit.getOffset() > base.length() - edit.getDeleteLength()) {
+                throw new IllegalArgumentException("Invalid edit at offset: " + edit.getOffset());
+            }
+            end = edit.getOffset() + edit.getDeleteLength();
+            newLength += length(edit.getText()) - edit.getDeleteLength();
+        }
+        StringBuilder builder = new StringBuilder(newLength);
+        int copied = 0;
+        for (TextEdit edit : edits) {
+            builder.append(base, copied, edit.getOffset());
+            if (edit.getText() != null) {
+                builder.append(edit.getText());
+            }
+            copied = edit.getOffset() + edit.getDeleteLength();
+        }
+        return builder.append(base, copied, base.length()).toString();
+    }
+
+    private static int length(String text) {
+        return text == null ? 0 : text.length();
+    }
+}
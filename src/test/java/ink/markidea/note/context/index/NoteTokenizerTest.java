@@ -0,0 +1,96 @@
+package ink.markidea.note.context.index;
+
+import ink.markidea.note.context.index.NoteTokenizer.Token;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NoteTokenizerTest {
+
+    @Test
+    void latinWordsAreLowerCasedWithPositions() {
+        List<Token> tokens = NoteTokenizer.tokenize("Hello, World! v2");
+
+        assertEquals(Arrays.asList("hello", "world", "v2"), terms(tokens));
+        assertEquals(0, tokens.get(0).getPosition());
+        assertEquals(2, tokens.get(2).getPosition());
+        assertFalse(tokens.get(0).isPrefix());
+    }
+
+    @Test
+    void queryWordsArePrefixes() {
+        List<Token> tokens = NoteTokenizer.tokenizeQuery("Data");
+
+        assertEquals(1, tokens.size());
+        assertEquals("data", tokens.get(0).getTerm());
+        assertTrue(tokens.get(0).isPrefix());
+    }
+
+    @Test
+    void cjkIndexEmitsUniBiAndTrigrams() {
+        List<Token> tokens = NoteTokenizer.tokenize("数据库");
+
+        assertEquals(Arrays.asList("数", "数据", "数据库", "据", "据库", "库"), terms(tokens));
+        assertEquals(0, tokens.get(2).getPosition());
+        assertEquals(1, tokens.get(3).getPosition());
+        assertEquals(2, tokens.get(5).getPosition());
+    }
+
+    @Test
+    void cjkQueryIsCoveredByLongestGrams() {
+        List<Token> tokens = NoteTokenizer.tokenizeQuery("数据库索引");
+
+        assertEquals(Arrays.asList("数据库", "库索引"), terms(tokens));
+        assertEquals(0, tokens.get(0).getPosition());
+        assertEquals(2, tokens.get(1).getPosition());
+        assertFalse(tokens.get(0).isPrefix());
+    }
+
+    @Test
+    void mixedTextKeepsRunningPositions() {
+        List<Token> tokens = NoteTokenizer.tokenizeQuery("git仓库sync");
+
+        assertEquals(Arrays.asList("git", "仓库", "sync"), terms(tokens));
+        assertEquals(0, tokens.get(0).getPosition());
+        assertEquals(1, tokens.get(1).getPosition());
+        assertEquals(3, tokens.get(2).getPosition());
+    }
+
+    @Test
+    void supplementaryCjkIsIndexedByCodePoint() {
+        String text = "𠀀𠀁字";
+        List<Token> tokens = NoteTokenizer.tokenize(text);
+
+        assertEquals(6, tokens.size());
+        assertEquals("𠀀", tokens.get(0).getTerm());
+        assertEquals(text, tokens.get(2).getTerm());
+        assertEquals(2, tokens.get(5).getPosition());
+        assertTrue(NoteTokenizer.isCjk(0x20000));
+    }
+
+    @Test
+    void kanaAndHangulAreCjk() {
+        assertTrue(NoteTokenizer.isCjk('の'));
+        assertTrue(NoteTokenizer.isCjk('ー'));
+        assertTrue(NoteTokenizer.isCjk('한'));
+        assertFalse(NoteTokenizer.isCjk('a'));
+        assertFalse(NoteTokenizer.isCjk('，'));
+    }
+
+    @Test
+    void punctuationProducesNoTokens() {
+        assertTrue(NoteTokenizer.tokenizeQuery("!?，。").isEmpty());
+        assertTrue(NoteTokenizer.tokenize("").isEmpty());
+        assertTrue(NoteTokenizer.tokenize(null).isEmpty());
+    }
+
+    private static List<String> terms(List<Token> tokens) {
+        List<String> terms = new ArrayList<>(tokens.size());
+        tokens.forEach(token -> terms.add(token.getTerm()));
+        return terms;
+    }
+}
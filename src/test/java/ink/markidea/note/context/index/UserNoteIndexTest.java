@@ -0,0 +1,204 @@
+package ink.markidea.note.context.index;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserNoteIndexTest {
+
+    @TempDir
+    File tempDir;
+
+    private File indexFile;
+
+    private UserNoteIndex index;
+
+    @BeforeEach
+    void setUp() {
+        indexFile = new File(tempDir, "user.idx");
+        index = new UserNoteIndex(indexFile);
+    }
+
+    @Test
+    void phraseMustKeepTokenOrder() {
+        put(index, "nb", "first", "hello world");
+        put(index, "nb", "second", "world hello");
+
+        assertEquals(2, search(index, "hello").size());
+        List<SearchHit> hits = search(index, "hello world");
+        assertEquals(1, hits.size());
+        assertEquals("first", hits.get(0).getNoteTitle());
+        assertTrue(search(index, "hello there").isEmpty());
+    }
+
+    @Test
+    void cjkSubstringMatchesOnlyContiguousText() {
+        put(index, "nb", "contiguous", "建立数据库索引");
+        put(index, "nb", "split", "数据库 的 索引");
+
+        List<SearchHit> hits = search(index, "据库索");
+        assertEquals(1, hits.size());
+        assertEquals("contiguous", hits.get(0).getNoteTitle());
+        assertEquals(2, search(index, "数据库").size());
+    }
+
+    @Test
+    void queryWordMatchesLongerTermsByPrefix() {
+        put(index, "nb", "db", "the database schema");
+        put(index, "nb", "other", "metadata only");
+
+        List<SearchHit> hits = search(index, "data");
+        assertEquals(1, hits.size());
+        assertEquals("db", hits.get(0).getNoteTitle());
+        assertEquals(1, search(index, "the data").size());
+        assertTrue(search(index, "data the").isEmpty());
+    }
+
+    @Test
+    void scoreFavorsTermFrequencyAndTitle() {
+        put(index, "nb", "once", "apple banana cherry durian");
+        put(index, "nb", "often", "apple apple apple banana");
+        put(index, "nb", "apple in title", "apple banana cherry durian");
+        put(index, "nb", "unrelated", "banana cherry durian");
+
+        List<SearchHit> hits = search(index, "apple");
+        assertEquals(3, hits.size());
+        Map<String, SearchHit> hitMap = new HashMap<>();
+        hits.forEach(hit -> hitMap.put(hit.getNoteTitle(), hit));
+        assertTrue(hitMap.get("often").getScore() > hitMap.get("once").getScore());
+        assertTrue(hitMap.get("apple in title").getScore() > hitMap.get("once").getScore());
+        assertEquals("once", hits.get(2).getNoteTitle());
+        for (int i = 1; i < hits.size(); i++) {
+            assertTrue(hits.get(i - 1).getScore() >= hits.get(i).getScore());
+        }
+    }
+
+    @Test
+    void hitCountIncludesTitleAndContent() {
+        put(index, "nb", "markidea notes", "markidea is a note app, markidea syncs with git");
+
+        List<SearchHit> hits = search(index, "markidea");
+        assertEquals(1, hits.size());
+        assertEquals(3, hits.get(0).getHitCount());
+    }
+
+    @Test
+    void searchIsLimitedToNotebookScope() {
+        put(index, "work", "plan", "quarterly plan");
+        put(index, "life", "plan", "holiday plan");
+
+        List<SearchHit> hits = index.search(NoteTokenizer.tokenizeQuery("plan"), Collections.singleton("life"));
+        assertEquals(1, hits.size());
+        assertEquals("life", hits.get(0).getNotebookName());
+    }
+
+    @Test
+    void putReplacesPreviousContent() {
+        put(index, "nb", "note", "old words");
+        put(index, "nb", "note", "new words");
+
+        assertTrue(search(index, "old").isEmpty());
+        assertEquals(1, search(index, "new").size());
+        assertTrue(index.isIndexed("nb", "note", "new words".hashCode()));
+        assertFalse(index.isIndexed("nb", "note", "old words".hashCode()));
+    }
+
+    @Test
+    void replayRestoresPutRemoveAndRename() {
+        put(index, "nb", "kept", "replay keeps this note");
+        put(index, "nb", "removed", "replay drops this note");
+        put(index, "nb", "changed", "first version");
+        put(index, "nb", "changed", "second version");
+        index.removeDocument("nb", "removed");
+        index.renameNotebook("nb", "renamed");
+
+        UserNoteIndex reloaded = new UserNoteIndex(indexFile);
+        assertTrue(reloaded.load());
+        List<SearchHit> hits = search(reloaded, "replay");
+        assertEquals(1, hits.size());
+        assertEquals("renamed", hits.get(0).getNotebookName());
+        assertEquals("kept", hits.get(0).getNoteTitle());
+        assertTrue(search(reloaded, "first").isEmpty());
+        assertEquals(1, search(reloaded, "second version").size());
+        assertTrue(reloaded.getNoteTitles("nb").isEmpty());
+        assertEquals(2, reloaded.getNoteTitles("renamed").size());
+    }
+
+    @Test
+    void truncatedLastRecordIsDroppedOnLoad() throws IOException {
+        put(index, "nb", "complete", "complete record");
+        long validLength = indexFile.length();
+        put(index, "nb", "partial", "partial record");
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+            file.setLength(indexFile.length() - 3);
+        }
+
+        UserNoteIndex reloaded = new UserNoteIndex(indexFile);
+        assertTrue(reloaded.load());
+        assertEquals(1, search(reloaded, "complete").size());
+        assertTrue(search(reloaded, "partial").isEmpty());
+        assertEquals(validLength, indexFile.length());
+    }
+
+    @Test
+    void corruptedRecordStopsReplay() throws IOException {
+        put(index, "nb", "before", "before corruption");
+        long validLength = indexFile.length();
+        put(index, "nb", "after", "after corruption");
+        byte[] bytes = Files.readAllBytes(indexFile.toPath());
+        bytes[bytes.length - 6] ^= 0x5A;
+        Files.write(indexFile.toPath(), bytes);
+
+        UserNoteIndex reloaded = new UserNoteIndex(indexFile);
+        assertTrue(reloaded.load());
+        assertEquals(1, search(reloaded, "before").size());
+        assertTrue(search(reloaded, "after").isEmpty());
+        assertEquals(validLength, indexFile.length());
+    }
+
+    @Test
+    void compactKeepsOnlyCurrentDocuments() {
+        for (int i = 0; i < 50; i++) {
+            put(index, "nb", "note", "revision " + i);
+        }
+        put(index, "nb", "temp", "temporary note");
+        index.removeDocument("nb", "temp");
+        long logLength = indexFile.length();
+
+        index.compact();
+        assertTrue(indexFile.length() < logLength);
+        UserNoteIndex reloaded = new UserNoteIndex(indexFile);
+        assertTrue(reloaded.load());
+        assertEquals(Collections.singleton("note"), reloaded.getNoteTitles("nb"));
+        assertEquals(1, search(reloaded, "49").size());
+        assertTrue(search(reloaded, "temporary").isEmpty());
+    }
+
+    @Test
+    void unknownHeaderRequiresRebuild() throws IOException {
+        Files.write(indexFile.toPath(), "not an index file".getBytes(StandardCharsets.UTF_8));
+        assertFalse(index.load());
+        assertFalse(new UserNoteIndex(new File(tempDir, "missing.idx")).load());
+    }
+
+    private static void put(UserNoteIndex index, String notebookName, String noteTitle, String content) {
+        index.putDocument(notebookName, noteTitle, content.hashCode(),
+                NoteTokenizer.tokenize(noteTitle), NoteTokenizer.tokenize(content));
+    }
+
+    private static List<SearchHit> search(UserNoteIndex index, String keyWord) {
+        return index.search(NoteTokenizer.tokenizeQuery(keyWord), null);
+    }
+}
@@ -0,0 +1,179 @@
+package ink.markidea.note.context.note;
+
+import ink.markidea.note.entity.dto.UserNoteKey;
+import ink.markidea.note.entity.vo.UserFileVo;
+import ink.markidea.note.service.IFileService;
+import ink.markidea.note.util.FileUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 日志重放 不调用 destroy 模拟进程崩溃
+ */
+class DraftBufferTest {
+
+    @TempDir
+    File notesDir;
+
+    private File notebookDir;
+
+    private File journalFile;
+
+    @BeforeEach
+    void setUp() {
+        notebookDir = new File(new File(notesDir, "user"), "nb");
+        assertTrue(notebookDir.mkdirs());
+        journalFile = new File(notesDir, ".draft-journal");
+    }
+
+    @Test
+    void latestDraftIsRecovered() throws IOException {
+        DraftBuffer crashed = start();
+        assertTrue(crashed.put(key("a"), "a v1"));
+        assertTrue(crashed.put(key("a"), "a v2"));
+        assertTrue(crashed.put(key("b"), "b v1"));
+
+        start();
+        assertEquals("a v2", read("a"));
+        assertEquals("b v1", read("b"));
+        assertEquals(0, journalFile.length());
+    }
+
+    @Test
+    void discardedDraftIsNotRecovered() throws IOException {
+        write("a", "saved");
+        DraftBuffer crashed = start();
+        assertTrue(crashed.put(key("a"), "draft"));
+        crashed.discard(key("a"));
+
+        start();
+        assertEquals("saved", read("a"));
+    }
+
+    @Test
+    void truncatedLastRecordIsIgnored() throws IOException {
+        DraftBuffer crashed = start();
+        assertTrue(crashed.put(key("a"), "complete"));
+        assertTrue(crashed.put(key("b"), "partial"));
+        try (RandomAccessFile journal = new RandomAccessFile(journalFile, "rw")) {
+            journal.setLength(journal.length() - 3);
+        }
+
+        start();
+        assertEquals("complete", read("a"));
+        assertFalse(new File(notebookDir, "b.md").exists());
+    }
+
+    @Test
+    void corruptedLastRecordIsIgnored() throws IOException {
+        write("b", "saved");
+        DraftBuffer crashed = start();
+        assertTrue(crashed.put(key("a"), "intact"));
+        assertTrue(crashed.put(key("b"), "corrupted"));
+        byte[] bytes = Files.readAllBytes(journalFile.toPath());
+        //最后一条记录内容的最后一个字节
+        bytes[bytes.length - 1] ^= 0x01;
+        Files.write(journalFile.toPath(), bytes);
+
+        start();
+        assertEquals("intact", read("a"));
+        assertEquals("saved", read("b"));
+    }
+
+    @Test
+    void draftOfRemovedNotebookIsSkipped() throws IOException {
+        DraftBuffer crashed = start();
+        assertTrue(crashed.put(key("a"), "draft"));
+        FileUtil.deleteFileOrDirectory(notebookDir);
+
+        start();
+        assertFalse(notebookDir.exists());
+        assertEquals(0, journalFile.length());
+    }
+
+    /**
+     * 创建并初始化 初始化时重放已有的日志
+     * 到期写入的间隔足够长, 测试期间草稿只保存在日志中
+     */
+    private DraftBuffer start() {
+        DraftBuffer buffer = new DraftBuffer();
+        ReflectionTestUtils.setField(buffer, "notesDir", notesDir.getAbsolutePath());
+        ReflectionTestUtils.setField(buffer, "enabled", true);
+        ReflectionTestUtils.setField(buffer, "delayMs", 3600 * 1000L);
+        ReflectionTestUtils.setField(buffer, "maxDelayMs", 3600 * 1000L);
+        ReflectionTestUtils.setField(buffer, "flushIntervalMs", 3600 * 1000L);
+        ReflectionTestUtils.setField(buffer, "journalMaxBytes", 64L * 1024 * 1024);
+        ReflectionTestUtils.setField(buffer, "fileService", new FileWriteService());
+        ReflectionTestUtils.invokeMethod(buffer, "init");
+        return buffer;
+    }
+
+    private static UserNoteKey key(String title) {
+        return UserNoteKey.of("user", "nb", title);
+    }
+
+    private String read(String title) {
+        return FileUtil.readFileAsString(new File(notebookDir, title + ".md"));
+    }
+
+    private void write(String title, String content) {
+        assertTrue(FileUtil.writeStringToFile(content, new File(notebookDir, title + ".md")));
+    }
+
+    /**
+     * 只支持写文件
+     */
+    private static class FileWriteService implements IFileService {
+
+        @Override
+        public boolean writeStringToFile(String content, File targetFile) {
+            return FileUtil.writeStringToFile(content, targetFile);
+        }
+
+        @Override
+        public String upload(MultipartFile file) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public File uploadFile(MultipartFile file) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public File createTmpEmptyDir() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getContentFromFile(File file) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void deleteFile(File file) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void batchDelete(List<String> fileNames) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public UserFileVo listUserFiles(int pageIndex, int pageSize) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package ink.markidea.note.context.note;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapNoteStoreTest {
+
+    private static final int BLOCK_SIZE = 16;
+
+    /** 每个slab 4个block */
+    private static final int SLAB_BYTES = 64;
+
+    @Test
+    void contentSpanningBlocksIsReadBack() {
+        OffHeapNoteStore store = new OffHeapNoteStore(1024, SLAB_BYTES, BLOCK_SIZE);
+        byte[] data = "跨越多个block的笔记内容, spanning several blocks".getBytes(StandardCharsets.UTF_8);
+
+        OffHeapNoteStore.Handle handle = store.store(data);
+        assertNotNull(handle);
+        assertEquals((data.length + BLOCK_SIZE - 1) / BLOCK_SIZE, handle.getBlockCount());
+        assertArrayEquals(data, store.read(handle));
+        assertEquals((long) handle.getBlockCount() * BLOCK_SIZE, store.getUsedBytes());
+    }
+
+    @Test
+    void emptyContentUsesNoBlocks() {
+        OffHeapNoteStore store = new OffHeapNoteStore(1024, SLAB_BYTES, BLOCK_SIZE);
+
+        OffHeapNoteStore.Handle handle = store.store(new byte[0]);
+        assertNotNull(handle);
+        assertEquals(0, handle.getBlockCount());
+        assertEquals(0, store.read(handle).length);
+        assertEquals(0, store.getAllocatedBytes());
+    }
+
+    @Test
+    void releasedBlocksAreReused() {
+        OffHeapNoteStore store = new OffHeapNoteStore(1024, SLAB_BYTES, BLOCK_SIZE);
+        OffHeapNoteStore.Handle first = store.store(filled(3 * BLOCK_SIZE, (byte) 1));
+        long allocated = store.getAllocatedBytes();
+
+        store.release(first);
+        assertEquals(0, store.getUsedBytes());
+        OffHeapNoteStore.Handle second = store.store(filled(3 * BLOCK_SIZE, (byte) 2));
+        assertEquals(allocated, store.getAllocatedBytes());
+        assertArrayEquals(filled(3 * BLOCK_SIZE, (byte) 2), store.read(second));
+    }
+
+    @Test
+    void releaseIsIdempotentAndInvalidatesHandle() {
+        OffHeapNoteStore store = new OffHeapNoteStore(1024, SLAB_BYTES, BLOCK_SIZE);
+        OffHeapNoteStore.Handle handle = store.store(filled(BLOCK_SIZE, (byte) 7));
+
+        store.release(handle);
+        store.release(handle);
+        assertNull(store.read(handle));
+        assertEquals(0, store.getUsedBytes());
+        //重复释放不能让同一个block进入空闲栈两次
+        OffHeapNoteStore.Handle first = store.store(filled(BLOCK_SIZE, (byte) 1));
+        OffHeapNoteStore.Handle second = store.store(filled(BLOCK_SIZE, (byte) 2));
+        assertArrayEquals(filled(BLOCK_SIZE, (byte) 1), store.read(first));
+        assertArrayEquals(filled(BLOCK_SIZE, (byte) 2), store.read(second));
+    }
+
+    @Test
+    void slabsAreAddedOnDemandUpToCapacity() {
+        OffHeapNoteStore store = new OffHeapNoteStore(2 * SLAB_BYTES, SLAB_BYTES, BLOCK_SIZE);
+        assertEquals(2 * SLAB_BYTES, store.getMaxBytes());
+
+        OffHeapNoteStore.Handle first = store.store(filled(BLOCK_SIZE, (byte) 1));
+        assertEquals(SLAB_BYTES, store.getAllocatedBytes());
+        OffHeapNoteStore.Handle second = store.store(filled(5 * BLOCK_SIZE, (byte) 2));
+        assertNotNull(second);
+        assertEquals(2 * SLAB_BYTES, store.getAllocatedBytes());
+        assertNull(store.store(filled(3 * BLOCK_SIZE, (byte) 3)));
+        assertNotNull(store.store(filled(2 * BLOCK_SIZE, (byte) 4)));
+        assertArrayEquals(filled(BLOCK_SIZE, (byte) 1), store.read(first));
+        assertArrayEquals(filled(5 * BLOCK_SIZE, (byte) 2), store.read(second));
+    }
+
+    @Test
+    void capacityIsRoundedDownToWholeSlabs() {
+        OffHeapNoteStore store = new OffHeapNoteStore(SLAB_BYTES + BLOCK_SIZE, SLAB_BYTES, BLOCK_SIZE);
+
+        assertEquals(SLAB_BYTES, store.getMaxBytes());
+        assertNull(store.store(filled(SLAB_BYTES + 1, (byte) 1)));
+    }
+
+    @Test
+    void invalidSizesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new OffHeapNoteStore(1024, SLAB_BYTES, 0));
+        assertThrows(IllegalArgumentException.class, () -> new OffHeapNoteStore(1024, BLOCK_SIZE - 1, BLOCK_SIZE));
+    }
+
+    private static byte[] filled(int length, byte value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, value);
+        return data;
+    }
+}
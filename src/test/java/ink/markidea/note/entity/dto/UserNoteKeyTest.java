@@ -0,0 +1,147 @@
+package ink.markidea.note.entity.dto;
+
+import ink.markidea.note.context.index.NoteTokenizer;
+import ink.markidea.note.context.index.SearchHit;
+import ink.markidea.note.context.index.UserNoteIndex;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class UserNoteKeyTest {
+
+    private static final int NOTE_COUNT = 100;
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void sameNoteReturnsSameKey() {
+        UserNoteKey key = UserNoteKey.of("user", "notebook", "title");
+        assertSame(key, UserNoteKey.of(new String("user"), new String("notebook"), new String("title")));
+        assertEquals(key.hashCode(), UserNoteKey.of("user", "notebook", "title").hashCode());
+    }
+
+    @Test
+    void usernameAndNotebookAreInterned() {
+        UserNoteKey first = UserNoteKey.of("user", "notebook", "first");
+        UserNoteKey second = UserNoteKey.of(new String("user"), new String("notebook"), "second");
+        assertSame(first.getUsername(), second.getUsername());
+        assertSame(first.getNotebookName(), second.getNotebookName());
+    }
+
+    @Test
+    void forgottenKeyIsStillEqual() {
+        UserNoteKey key = UserNoteKey.of("user", "forget", "title");
+        UserNoteKey.forget("user", "forget", "title");
+        UserNoteKey recreated = UserNoteKey.of("user", "forget", "title");
+        assertNotSame(key, recreated);
+        assertEquals(key, recreated);
+    }
+
+    @Test
+    void forgottenKeySharesLockWithRecreatedKey() {
+        UserNoteKey key = UserNoteKey.of("user", "lock", "title");
+        UserNoteKey.forgetNotebook("user", "lock");
+        UserNoteKey recreated = UserNoteKey.of("user", "lock", "title");
+        assertNotSame(key, recreated);
+        assertSame(key.lock(), recreated.lock());
+    }
+
+    /**
+     * 搜索结果逐条生成key加载预览 笔记本名和标题来自索引, 已存在的key不应再分配对象
+     */
+    @Test
+    void lookupForSearchHitsDoesNotAllocate() {
+        UserNoteIndex index = new UserNoteIndex(new File(tempDir, "user.idx"));
+        List<UserNoteKey> held = new ArrayList<>();
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            String title = "搜索笔记-" + i;
+            String content = "# " + title + "\n共同的关键字 markidea 第" + i + "篇";
+            index.putDocument("search", title, content.hashCode(),
+                    NoteTokenizer.tokenize(title), NoteTokenizer.tokenize(content), false);
+            held.add(UserNoteKey.of("user", "search", title));
+        }
+        List<NoteTokenizer.Token> query = NoteTokenizer.tokenizeQuery("markidea");
+
+        assertLookupDoesNotAllocate(() -> {
+            List<SearchHit> hits = index.search(query, null);
+            assertEquals(NOTE_COUNT, hits.size());
+            List<String[]> names = new ArrayList<>(hits.size());
+            hits.forEach(hit -> names.add(new String[]{hit.getNotebookName(), hit.getNoteTitle()}));
+            return names;
+        }, held);
+    }
+
+    /**
+     * 列出笔记本时由文件名截取标题生成key 每次都是新的字符串, 已存在的key不应再分配对象
+     */
+    @Test
+    void lookupForListedNotesDoesNotAllocate() throws IOException {
+        File notebookDir = new File(tempDir, "listing");
+        assertTrue(notebookDir.mkdir());
+        List<UserNoteKey> held = new ArrayList<>();
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            String title = "note-" + i;
+            Files.write(new File(notebookDir, title + ".md").toPath(), ("content " + i).getBytes(StandardCharsets.UTF_8));
+            held.add(UserNoteKey.of("user", "listing", title));
+        }
+
+        assertLookupDoesNotAllocate(() -> {
+            File[] files = notebookDir.listFiles();
+            assertNotNull(files);
+            List<String[]> names = new ArrayList<>(files.length);
+            for (File file : files) {
+                String fileName = file.getName();
+                names.add(new String[]{notebookDir.getName(), fileName.substring(0, fileName.length() - ".md".length())});
+            }
+            return names;
+        }, held);
+    }
+
+    /**
+     * 反复取得笔记名后查找key 只统计查找本身的分配
+     * @param source 每轮返回 笔记本名,标题 列表, 调用方负责其中的分配
+     */
+    private static void assertLookupDoesNotAllocate(Supplier<List<String[]>> source, List<UserNoteKey> held) {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        Set<UserNoteKey> expected = Collections.newSetFromMap(new IdentityHashMap<>());
+        expected.addAll(held);
+        long threadId = Thread.currentThread().getId();
+        int rounds = 200;
+        long allocated = 0;
+        for (int round = 0; round < rounds * 2; round++) {
+            List<String[]> names = source.get();
+            long before = allocationBean.getThreadAllocatedBytes(threadId);
+            for (String[] name : names) {
+                if (!expected.contains(UserNoteKey.of("user", name[0], name[1]))) {
+                    fail("key for " + name[1] + " is not canonical");
+                }
+            }
+            //前一半轮次用于预热
+            if (round >= rounds) {
+                allocated += allocationBean.getThreadAllocatedBytes(threadId) - before;
+            }
+        }
+        //每次新建key至少占用24字节 这里要求平均每次查找不到1字节
+        assertTrue(allocated < (long) NOTE_COUNT * rounds, "allocated " + allocated + " bytes");
+    }
+}
@@ -0,0 +1,123 @@
+package ink.markidea.note.util;
+
+import ink.markidea.note.entity.vo.NoteDiffVo;
+import ink.markidea.note.entity.vo.NoteDiffVo.Hunk;
+import ink.markidea.note.entity.vo.NoteDiffVo.Line;
+import ink.markidea.note.entity.vo.NoteDiffVo.Segment;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DiffUtilTest {
+
+    @Test
+    void identicalContentHasNoHunks() {
+        NoteDiffVo diff = diff("a\nb\nc\n", "a\nb\nc\n");
+
+        assertTrue(diff.getHunks().isEmpty());
+        assertEquals(3, diff.getOldLineCount());
+        assertEquals(3, diff.getNewLineCount());
+    }
+
+    @Test
+    void hunkKeepsThreeLinesOfContext() {
+        NoteDiffVo diff = diff(lines(1, 10), lines(1, 10).replace("line5\n", "changed\n"));
+
+        assertEquals(1, diff.getHunks().size());
+        Hunk hunk = diff.getHunks().get(0);
+        assertEquals(1, hunk.getOldStart());
+        assertEquals(1, hunk.getNewStart());
+        List<Line> hunkLines = hunk.getLines();
+        assertEquals(8, hunkLines.size());
+        assertLine(hunkLines.get(0), Line.TYPE_EQUAL, "line2");
+        assertLine(hunkLines.get(3), Line.TYPE_DELETE, "line5");
+        assertLine(hunkLines.get(4), Line.TYPE_INSERT, "changed");
+        assertLine(hunkLines.get(7), Line.TYPE_EQUAL, "line8");
+    }
+
+    @Test
+    void nearbyChangesShareOneHunk() {
+        String oldContent = lines(1, 30);
+        String near = oldContent.replace("line5\n", "x\n").replace("line10\n", "y\n");
+        String far = oldContent.replace("line5\n", "x\n").replace("line25\n", "y\n");
+
+        assertEquals(1, diff(oldContent, near).getHunks().size());
+        List<Hunk> hunks = diff(oldContent, far).getHunks();
+        assertEquals(2, hunks.size());
+        assertEquals(21, hunks.get(1).getOldStart());
+    }
+
+    @Test
+    void insertedLinesShiftNewStart() {
+        String oldContent = lines(1, 20);
+        String newContent = "new1\nnew2\n" + oldContent.replace("line15\n", "changed\n");
+
+        List<Hunk> hunks = diff(oldContent, newContent).getHunks();
+        assertEquals(2, hunks.size());
+        assertEquals(0, hunks.get(0).getNewStart());
+        assertEquals(11, hunks.get(1).getOldStart());
+        assertEquals(13, hunks.get(1).getNewStart());
+    }
+
+    @Test
+    void pairedLinesGetWordSegments() {
+        NoteDiffVo diff = diff("the quick fox\n", "the slow fox\n");
+
+        List<Line> hunkLines = diff.getHunks().get(0).getLines();
+        assertEquals(2, hunkLines.size());
+        List<Segment> oldSegments = hunkLines.get(0).getSegments();
+        List<Segment> newSegments = hunkLines.get(1).getSegments();
+        assertEquals(3, oldSegments.size());
+        assertSegment(oldSegments.get(0), Line.TYPE_EQUAL, "the ");
+        assertSegment(oldSegments.get(1), Line.TYPE_DELETE, "quick");
+        assertSegment(oldSegments.get(2), Line.TYPE_EQUAL, " fox");
+        assertSegment(newSegments.get(1), Line.TYPE_INSERT, "slow");
+    }
+
+    @Test
+    void chineseIsComparedPerCharacter() {
+        NoteDiffVo diff = diff("今天天气很好\n", "今天天气不好\n");
+
+        List<Segment> oldSegments = diff.getHunks().get(0).getLines().get(0).getSegments();
+        assertSegment(oldSegments.get(0), Line.TYPE_EQUAL, "今天天气");
+        assertSegment(oldSegments.get(1), Line.TYPE_DELETE, "很");
+        assertSegment(oldSegments.get(2), Line.TYPE_EQUAL, "好");
+    }
+
+    @Test
+    void unpairedLinesHaveNoSegments() {
+        NoteDiffVo diff = diff("a\nb\n", "x\ny\nz\n");
+
+        List<Line> hunkLines = diff.getHunks().get(0).getLines();
+        assertEquals(5, hunkLines.size());
+        assertLine(hunkLines.get(0), Line.TYPE_DELETE, "a");
+        assertLine(hunkLines.get(1), Line.TYPE_DELETE, "b");
+        assertLine(hunkLines.get(2), Line.TYPE_INSERT, "x");
+        hunkLines.forEach(line -> assertNull(line.getSegments()));
+    }
+
+    private static NoteDiffVo diff(String oldContent, String newContent) {
+        return DiffUtil.diff(oldContent.getBytes(StandardCharsets.UTF_8), newContent.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String lines(int from, int to) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = from; i <= to; i++) {
+            builder.append("line").append(i).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static void assertLine(Line line, int type, String content) {
+        assertEquals(type, line.getType());
+        assertEquals(content, line.getContent());
+    }
+
+    private static void assertSegment(Segment segment, int type, String text) {
+        assertEquals(type, segment.getType());
+        assertEquals(text, segment.getText());
+    }
+}
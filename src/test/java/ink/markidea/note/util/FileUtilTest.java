@@ -0,0 +1,57 @@
+package ink.markidea.note.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileUtilTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void headOfShortFileIsWholeFile() throws IOException {
+        File file = write("short.md", "短文本 short");
+
+        assertEquals("短文本 short", FileUtil.readFileHead(file, 1024));
+    }
+
+    @Test
+    void headEndsAtCharacterBoundary() throws IOException {
+        //"中"和"文"各占3个字节
+        File file = write("cjk.md", "ab中文");
+
+        assertEquals("ab", FileUtil.readFileHead(file, 3));
+        assertEquals("ab", FileUtil.readFileHead(file, 4));
+        assertEquals("ab中", FileUtil.readFileHead(file, 5));
+        assertEquals("ab中", FileUtil.readFileHead(file, 6));
+        assertEquals("ab中文", FileUtil.readFileHead(file, 8));
+    }
+
+    @Test
+    void headDropsTruncatedFourByteCharacter() throws IOException {
+        File file = write("emoji.md", "a😀b");
+
+        for (int maxBytes = 1; maxBytes <= 4; maxBytes++) {
+            assertEquals("a", FileUtil.readFileHead(file, maxBytes));
+        }
+        assertEquals("a😀", FileUtil.readFileHead(file, 5));
+    }
+
+    @Test
+    void headOfMissingFileIsNull() {
+        assertNull(FileUtil.readFileHead(new File(tempDir, "missing.md"), 16));
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(tempDir, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
@@ -0,0 +1,47 @@
+package ink.markidea.note.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MarkdownUtilTest {
+
+    @Test
+    void lineMarkersAreStripped() {
+        String markdown = "# 标题\n> 引用内容\n- 列表项\n- [x] 已完成\n1. 第一步";
+
+        assertEquals("标题 引用内容 列表项 已完成 第一步", MarkdownUtil.toPlainText(markdown, 100));
+    }
+
+    @Test
+    void inlineMarkupKeepsText() {
+        String markdown = "**加粗** and *italic* with `code`, ~~old~~ [链接](http://a.b) ![图片](x.png) <br/>snake_case";
+
+        assertEquals("加粗 and italic with code, old 链接 图片 snake_case", MarkdownUtil.toPlainText(markdown, 200));
+    }
+
+    @Test
+    void fencesRulesAndTableDelimitersAreDropped() {
+        String markdown = "```java\nint a = 1;\n```\n---\n| 名称 | 值 |\n| --- | :-: |\n| a | 1 |";
+
+        assertEquals("int a = 1; 名称 值 a 1", MarkdownUtil.toPlainText(markdown, 100));
+    }
+
+    @Test
+    void blankLinesAndWindowsNewlinesAreJoined() {
+        assertEquals("first second", MarkdownUtil.toPlainText("first\r\n\r\n   \r\nsecond\r\n", 100));
+    }
+
+    @Test
+    void resultIsCutAtMaxLength() {
+        assertEquals("abcde", MarkdownUtil.toPlainText("abcdefgh\nmore", 5));
+    }
+
+    @Test
+    void cutDoesNotSplitSurrogatePair() {
+        String text = "ab𠀀cd";
+
+        assertEquals("ab", MarkdownUtil.toPlainText(text, 3));
+        assertEquals("ab𠀀", MarkdownUtil.toPlainText(text, 4));
+    }
+}
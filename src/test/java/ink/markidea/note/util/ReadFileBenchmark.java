@@ -0,0 +1,85 @@
+package ink.markidea.note.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 读取笔记文件的基准测试 对比改动前基于 available() 的读取和当前的 FileUtil.readFileAsString
+ * 文件内容为中英文混合的 markdown, 读取的是页缓存中的热文件
+ *
+ * 运行: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=ink.markidea.note.util.ReadFileBenchmark
+ * 或在 IDE 中直接运行 main 方法
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadFileBenchmark {
+
+    private static final String LINE = "## 笔记标题 MarkIdea note line with some English words, 以及一些中文内容。\n";
+
+    @Param({"1024", "65536", "1048576", "10485760"})
+    private int fileSize;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        file = File.createTempFile("read-benchmark", ".md");
+        byte[] line = LINE.getBytes(StandardCharsets.UTF_8);
+        byte[] content = new byte[(fileSize + line.length - 1) / line.length * line.length];
+        for (int offset = 0; offset < content.length; offset += line.length) {
+            System.arraycopy(line, 0, content, offset, line.length);
+        }
+        Files.write(file.toPath(), content);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        file.delete();
+    }
+
+    /**
+     * 改动前的实现 只读一次, 按平台默认字符集解码
+     */
+    @Benchmark
+    public String baseline() throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            byte[] bytes = new byte[inputStream.available()];
+            inputStream.read(bytes);
+            return new String(bytes);
+        }
+    }
+
+    @Benchmark
+    public String readFileAsString() {
+        return FileUtil.readFileAsString(file);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ReadFileBenchmark.class.getSimpleName()).build()).run();
+    }
+}
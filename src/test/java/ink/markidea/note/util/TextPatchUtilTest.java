@@ -0,0 +1,73 @@
+package ink.markidea.note.util;
+
+import ink.markidea.note.entity.dto.TextEdit;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TextPatchUtilTest {
+
+    @Test
+    void editsAreAppliedAgainstOriginalOffsets() {
+        String base = "hello world";
+
+        String patched = TextPatchUtil.apply(base, Arrays.asList(
+                edit(0, 5, "HELLO"),
+                edit(5, 0, ","),
+                edit(6, 5, "笔记")));
+        assertEquals("HELLO, 笔记", patched);
+    }
+
+    @Test
+    void insertDeleteAndAppend() {
+        String base = "abcdef";
+
+        assertEquals("abXcdef", TextPatchUtil.apply(base, Collections.singletonList(edit(2, 0, "X"))));
+        assertEquals("abef", TextPatchUtil.apply(base, Collections.singletonList(edit(2, 2, null))));
+        assertEquals("abcdef!", TextPatchUtil.apply(base, Collections.singletonList(edit(6, 0, "!"))));
+        assertEquals("", TextPatchUtil.apply(base, Collections.singletonList(edit(0, 6, ""))));
+        assertEquals(base, TextPatchUtil.apply(base, Collections.emptyList()));
+    }
+
+    @Test
+    void adjacentEditsAreAllowed() {
+        assertEquals("aXYd", TextPatchUtil.apply("abcd", Arrays.asList(edit(1, 1, "X"), edit(2, 1, "Y"))));
+    }
+
+    @Test
+    void overlappingEditsAreRejected() {
+        assertThrows(IllegalArgumentException.class,
+                () -> TextPatchUtil.apply("abcdef", Arrays.asList(edit(1, 3, "X"), edit(3, 1, "Y"))));
+    }
+
+    @Test
+    void unsortedEditsAreRejected() {
+        assertThrows(IllegalArgumentException.class,
+                () -> TextPatchUtil.apply("abcdef", Arrays.asList(edit(4, 1, "X"), edit(1, 1, "Y"))));
+    }
+
+    @Test
+    void outOfRangeEditsAreRejected() {
+        assertThrows(IllegalArgumentException.class,
+                () -> TextPatchUtil.apply("abc", Collections.singletonList(edit(-1, 0, "X"))));
+        assertThrows(IllegalArgumentException.class,
+                () -> TextPatchUtil.apply("abc", Collections.singletonList(edit(4, 0, "X"))));
+        assertThrows(IllegalArgumentException.class,
+                () -> TextPatchUtil.apply("abc", Collections.singletonList(edit(2, 2, null))));
+        assertThrows(IllegalArgumentException.class,
+                () -> TextPatchUtil.apply("abc", Collections.singletonList(edit(1, -1, "X"))));
+    }
+
+    @Test
+    void hugeDeleteLengthDoesNotOverflow() {
+        assertThrows(IllegalArgumentException.class,
+                () -> TextPatchUtil.apply("abc", Collections.singletonList(edit(1, Integer.MAX_VALUE, null))));
+    }
+
+    private static TextEdit edit(int offset, int deleteLength, String text) {
+        return new TextEdit().setOffset(offset).setDeleteLength(deleteLength).setText(text);
+    }
+}